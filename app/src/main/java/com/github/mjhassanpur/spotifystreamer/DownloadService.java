@@ -0,0 +1,326 @@
+package com.github.mjhassanpur.spotifystreamer;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+
+import com.github.mjhassanpur.spotifystreamer.api.ApiClient;
+import com.github.mjhassanpur.spotifystreamer.media.MediaNotificationManager;
+import com.github.mjhassanpur.spotifystreamer.media.OfflineLibrary;
+import com.github.mjhassanpur.spotifystreamer.model.TrackItem;
+import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A service downloading the previews and album art of the tracks made available offline.
+ *
+ * A few tracks are downloaded in parallel. An interrupted download resumes from the part
+ * already written, and a failed one is retried with an exponential backoff. The jobs are
+ * kept by the {@link OfflineLibrary}, so that the service picks them up again when it is
+ * restarted after the process was killed.
+ */
+public class DownloadService extends Service {
+
+    private static final String TAG = LogHelper.makeLogTag(DownloadService.class);
+
+    // The action of the incoming Intent indicating that the tracks in its extras should
+    // be made available offline
+    public static final String ACTION_DOWNLOAD = "com.github.mjhassanpur.spotifystreamer.ACTION_DOWNLOAD";
+    // The action of the incoming Intent indicating that unfinished downloads should resume
+    public static final String ACTION_RESUME = "com.github.mjhassanpur.spotifystreamer.ACTION_RESUME";
+    public static final String EXTRA_TRACKS = "tracks";
+
+    private static final int MAX_CONCURRENT_DOWNLOADS = 2;
+    private static final int MAX_ATTEMPTS = 5;
+    // Doubled after every failed attempt
+    private static final long INITIAL_RETRY_DELAY = 2000;
+    private static final long MAX_RETRY_DELAY = 60000;
+    private static final int BUFFER_SIZE = 8192;
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+    // The Content-Range of a 416 response, giving the length of the whole file
+    private static final Pattern UNSATISFIED_RANGE_PATTERN = Pattern.compile("bytes \\*/(\\d+)");
+    // Entity tags of this form are commonly the MD5 of the content, which lets us check it
+    private static final Pattern MD5_ETAG_PATTERN = Pattern.compile("\"?([0-9a-f]{32})\"?");
+
+    private OfflineLibrary mLibrary;
+    private OkHttpClient mClient;
+    private ScheduledExecutorService mExecutor;
+    private final Handler mHandler = new Handler();
+
+    // Only touched on the main thread
+    // Media IDs of the tracks being downloaded or waiting to be retried
+    private final Set<String> mActive = new HashSet<>();
+    private int mFinished;
+    private int mTotal;
+    private int mLastStartId;
+
+    /**
+     * Makes the tracks available offline.
+     */
+    public static void download(Context context, ArrayList<TrackItem> tracks) {
+        Intent intent = new Intent(context, DownloadService.class);
+        intent.setAction(ACTION_DOWNLOAD);
+        intent.putParcelableArrayListExtra(EXTRA_TRACKS, tracks);
+        context.startService(intent);
+    }
+
+    /**
+     * Resumes the downloads left unfinished by a previous process, if there are any.
+     */
+    public static void resume(Context context) {
+        Intent intent = new Intent(context, DownloadService.class);
+        intent.setAction(ACTION_RESUME);
+        context.startService(intent);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mLibrary = OfflineLibrary.getInstance(this);
+        mClient = ApiClient.getInstance(this).getUncachedHttpClient();
+        mExecutor = Executors.newScheduledThreadPool(MAX_CONCURRENT_DOWNLOADS);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        if (intent != null && ACTION_DOWNLOAD.equals(intent.getAction())) {
+            ArrayList<TrackItem> tracks = intent.getParcelableArrayListExtra(EXTRA_TRACKS);
+            if (tracks != null) {
+                mLibrary.add(tracks);
+            }
+        }
+        // A null intent means the service was restarted, so resume whatever is pending
+        List<TrackItem> pending = mLibrary.getPendingTracks();
+        for (TrackItem track : pending) {
+            if (mActive.add(track.id)) {
+                mTotal++;
+                schedule(track, 0, 0);
+            }
+        }
+        if (mActive.isEmpty()) {
+            finish();
+        } else {
+            updateNotification();
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        LogHelper.d(TAG, "onDestroy");
+        // Partial files are kept, so that the downloads resume where they stopped
+        mExecutor.shutdownNow();
+        mHandler.removeCallbacksAndMessages(null);
+        stopForeground(true);
+    }
+
+    private void schedule(TrackItem track, int attempt, long delay) {
+        try {
+            mExecutor.schedule(new DownloadTask(track, attempt), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The service is being destroyed; the job is still pending in the library
+        }
+    }
+
+    private void onFinished(final String mediaId) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mActive.remove(mediaId)) {
+                    return;
+                }
+                mFinished++;
+                if (mActive.isEmpty()) {
+                    finish();
+                } else {
+                    updateNotification();
+                }
+            }
+        });
+    }
+
+    private void finish() {
+        LogHelper.d(TAG, "Finished ", mFinished, " of ", mTotal, " downloads");
+        mFinished = 0;
+        mTotal = 0;
+        stopForeground(true);
+        stopSelf(mLastStartId);
+    }
+
+    private void updateNotification() {
+        startForeground(MediaNotificationManager.DOWNLOAD_NOTIFICATION_ID,
+                MediaNotificationManager.createDownloadNotification(this, mFinished, mTotal));
+    }
+
+    private class DownloadTask implements Runnable {
+        private final TrackItem mTrack;
+        private final int mAttempt;
+
+        DownloadTask(TrackItem track, int attempt) {
+            mTrack = track;
+            mAttempt = attempt;
+        }
+
+        @Override
+        public void run() {
+            if (mTrack.previewUrl == null) {
+                LogHelper.w(TAG, "No preview to download for ", mTrack.id);
+                mLibrary.fail(mTrack.id);
+                onFinished(mTrack.id);
+                return;
+            }
+            try {
+                downloadAlbumArt(mTrack);
+                downloadPreview(mTrack);
+                onFinished(mTrack.id);
+            } catch (IOException e) {
+                if (mAttempt + 1 < MAX_ATTEMPTS) {
+                    long delay = Math.min(INITIAL_RETRY_DELAY << mAttempt, MAX_RETRY_DELAY);
+                    LogHelper.w(TAG, e, "Download of ", mTrack.id, " failed, retrying in ", delay, "ms");
+                    schedule(mTrack, mAttempt + 1, delay);
+                } else {
+                    LogHelper.e(TAG, e, "Giving up on the download of ", mTrack.id);
+                    mLibrary.fail(mTrack.id);
+                    onFinished(mTrack.id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Downloads the preview into the partial file, continuing from what an earlier attempt
+     * wrote as long as the file on the server hasn't changed since.
+     */
+    private void downloadPreview(TrackItem track) throws IOException {
+        File partial = mLibrary.getPartialFile(track.id);
+        long offset = partial.exists() ? partial.length() : 0;
+        String etag = mLibrary.getEtag(track.id);
+        Request.Builder builder = new Request.Builder().url(track.previewUrl);
+        if (offset > 0) {
+            builder.header("Range", "bytes=" + offset + "-");
+            if (etag != null) {
+                // The server sends the whole file instead if it changed
+                builder.header("If-Range", etag);
+            }
+        }
+        Response response = mClient.newCall(builder.build()).execute();
+        long length;
+        if (offset > 0 && response.code() == 416) {
+            response.body().close();
+            Matcher matcher = UNSATISFIED_RANGE_PATTERN.matcher(String.valueOf(response.header("Content-Range")));
+            if (!matcher.matches() || Long.parseLong(matcher.group(1)) != offset) {
+                // The partial file doesn't match the one on the server, so start over
+                partial.delete();
+                mLibrary.setEtag(track.id, null);
+                throw new IOException("Unsatisfiable range for " + track.id);
+            }
+            // The process was killed after the download finished but before it was moved
+            // into the library, so there is nothing left to download
+            completePreview(track, partial, etag);
+            return;
+        } else if (offset > 0 && response.code() == 206) {
+            Matcher matcher = CONTENT_RANGE_PATTERN.matcher(String.valueOf(response.header("Content-Range")));
+            length = matcher.matches() ? Long.parseLong(matcher.group(3)) : -1;
+        } else if (response.isSuccessful()) {
+            offset = 0;
+            length = response.body().contentLength();
+            etag = response.header("ETag");
+            mLibrary.setEtag(track.id, etag);
+        } else {
+            response.body().close();
+            throw new IOException("Unexpected response " + response.code());
+        }
+
+        InputStream in = response.body().byteStream();
+        RandomAccessFile out = new RandomAccessFile(partial, "rw");
+        try {
+            out.setLength(offset);
+            out.seek(offset);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+        if (length >= 0 && partial.length() != length) {
+            throw new IOException("Downloaded " + partial.length() + " of " + length + " bytes");
+        }
+        completePreview(track, partial, etag);
+    }
+
+    /**
+     * Checks the downloaded preview against the entity tag when it is an MD5, and moves it
+     * into the library.
+     */
+    private void completePreview(TrackItem track, File partial, String etag) throws IOException {
+        String checksum = OfflineLibrary.checksum(partial);
+        Matcher matcher = MD5_ETAG_PATTERN.matcher(etag != null ? etag.toLowerCase(Locale.US) : "");
+        if (matcher.matches() && !matcher.group(1).equals(checksum)) {
+            // Resuming can't fix a corrupted start, so start over
+            partial.delete();
+            mLibrary.setEtag(track.id, null);
+            throw new IOException("Checksum mismatch for " + track.id);
+        }
+        mLibrary.complete(track.id, partial, checksum);
+    }
+
+    /**
+     * Downloads the largest album art, unless another track of the album already did.
+     */
+    private void downloadAlbumArt(TrackItem track) throws IOException {
+        String url = track.albumArtUrl;
+        if (url == null || mLibrary.getAlbumArtFile(url) != null) {
+            return;
+        }
+        Response response = mClient.newCall(new Request.Builder().url(url).build()).execute();
+        if (!response.isSuccessful()) {
+            response.body().close();
+            throw new IOException("Unexpected response " + response.code());
+        }
+        File partial = mLibrary.getPartialAlbumArtFile(track);
+        InputStream in = response.body().byteStream();
+        OutputStream out = new FileOutputStream(partial);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+        mLibrary.completeAlbumArt(track, partial);
+    }
+}
@@ -18,44 +18,62 @@ package com.github.mjhassanpur.spotifystreamer;
 
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.os.SystemClock;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.view.KeyEvent;
 
+import com.github.mjhassanpur.spotifystreamer.media.AudioCache;
 import com.github.mjhassanpur.spotifystreamer.media.MediaButtonReceiver;
 import com.github.mjhassanpur.spotifystreamer.media.MediaNotificationManager;
 import com.github.mjhassanpur.spotifystreamer.media.MediaPlayback;
 import com.github.mjhassanpur.spotifystreamer.media.MediaProvider;
+import com.github.mjhassanpur.spotifystreamer.media.OfflineLibrary;
 import com.github.mjhassanpur.spotifystreamer.media.Playback;
+import com.github.mjhassanpur.spotifystreamer.media.QueueStore;
+import com.github.mjhassanpur.spotifystreamer.model.QueueSnapshot;
+import com.github.mjhassanpur.spotifystreamer.model.TrackItem;
 import com.github.mjhassanpur.spotifystreamer.ui.PlayerActivity;
 import com.github.mjhassanpur.spotifystreamer.ui.PlayerFragment;
+import com.github.mjhassanpur.spotifystreamer.utils.IndexedQueue;
 import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
 import com.github.mjhassanpur.spotifystreamer.utils.PreferenceHelper;
 import com.github.mjhassanpur.spotifystreamer.utils.QueueHelper;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 
 import java.lang.ref.WeakReference;
-import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
-import kaaes.spotify.webapi.android.models.Track;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A service for streaming music
  *
+ * The queue and the playback are confined to a dedicated thread, so that transport
+ * controls respond even while the main thread is busy. Session callbacks, commands and
+ * binder calls are all posted to it; callbacks to the UI are posted back to the main thread.
+ *
  * @see <a href="https://github.com/googlesamples/android-UniversalMusicPlayer/blob/master/mobile/src/main/java/com/example/android/uamp/MusicService.java"></a>
  * @see <a href="https://github.com/chrisanderson79/android-UniversalMusicPlayer/blob/master/mobile/src/main/java/com/example/android/uamp/MusicService.java"></a>
  */
@@ -75,29 +93,115 @@ public class MusicService extends Service implements Playback.Callback {
     // A value of a CMD_NAME key in the extras of the incoming Intent that
     // indicates that the music playback should play (see {@link #onStartCommand})
     public static final String CMD_PLAY = "CMD_PLAY";
+    // A value of a CMD_NAME key in the extras of the incoming Intent that
+    // indicates that the tracks in the extras should be added to the end of the
+    // queue (see {@link #onStartCommand})
+    public static final String CMD_ENQUEUE = "CMD_ENQUEUE";
+
+    // Marks a queue that was edited after being built from a snapshot
+    private static final long NO_QUEUE_VERSION = 0;
 
     // Delay stopSelf by using a handler.
     private static final int STOP_DELAY = 500000;
 
+    // Skips closer together than this are coalesced, and only the last one is played
+    private static final long SKIP_SETTLE_DELAY = 300;
+
+    // How long onDestroy waits for the playback thread to release everything
+    private static final long TEARDOWN_TIMEOUT = 5000;
+
+    private HandlerThread mPlaybackThread;
+    // Runs everything that touches the queue or the playback
+    private Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     private MediaProvider mMediaProvider;
     private MediaSessionCompat mSession;
     private MediaSessionCompat.Token mSessionToken;
-    private List<MediaSessionCompat.QueueItem> mPlayingQueue;
+    private IndexedQueue mPlayingQueue;
     private int mCurrentIndexOnQueue = -1;
     private MediaPlayback mPlayback;
-    private List<Track> mTracks;
+    // Version of the snapshot the playing queue was built from, if it hasn't been edited since
+    private long mQueueVersion = NO_QUEUE_VERSION;
+    // Queue IDs are never reused, so they stay stable as items are inserted, moved and removed
+    private long mNextQueueId;
+    private QueueStore mQueueStore;
+    private boolean mSessionQueueUpdatePending;
+    // Whether the position saved by a previous process is still to be restored
+    private boolean mPositionRestorePending;
+    // The media ID of a track preloaded from outside the queue, to drop if it isn't played
+    private String mPreloadedMediaId;
+    // Only touched on the main thread
     private Map<Integer, Callback> mCallbacks;
+    // For the UI; written on the playback thread
+    private volatile TrackItem mCurrentTrack;
 
     private MediaNotificationManager mMediaNotificationManager;
 
-    private boolean mServiceStarted;
-    private DelayedStopHandler mDelayedStopHandler = new DelayedStopHandler(this);
+    private volatile boolean mServiceStarted;
+    private DelayedStopHandler mDelayedStopHandler;
 
-    private Handler mHandler = new Handler();
     private Runnable mDelayedAction = null;
 
+    private ConnectivityManager mConnectivityManager;
+    private AudioCache mAudioCache;
+    private OfflineLibrary mOfflineLibrary;
+    // Only touched on the playback thread; while offline, items that aren't stored
+    // locally are skipped rather than left to time out buffering
+    private boolean mOnline = true;
+
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean online = isNetworkConnected();
+            if (online == mOnline) {
+                return;
+            }
+            LogHelper.d(TAG, "Connectivity changed. online=", online);
+            mOnline = online;
+            if (mPlayback.isPlaying()) {
+                // The item to prepare next depends on what can be played
+                prepareNextQueueItem();
+            }
+        }
+    };
+
+    private long mLastSkipTime;
+    // Whether playback waits for a burst of skips to settle
+    private boolean mSkipPending;
+    private final Runnable mSkipTask = new Runnable() {
+        @Override
+        public void run() {
+            handlePlayRequest();
+        }
+    };
+    private final Runnable mPrepareNextTask = new Runnable() {
+        @Override
+        public void run() {
+            prepareNextQueueItem();
+        }
+    };
+
     private final IBinder mBinder = new MusicBinder();
 
+    private final Runnable mUpdateSessionQueueTask = new Runnable() {
+        @Override
+        public void run() {
+            mSessionQueueUpdatePending = false;
+            // The session may hold on to the list, so give it a copy
+            mSession.setQueue(new ArrayList<>(mPlayingQueue.asList()));
+        }
+    };
+
+    private final Runnable mStartNotificationTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mMediaNotificationManager != null) {
+                mMediaNotificationManager.startNotification();
+            }
+        }
+    };
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -126,8 +230,16 @@ public class MusicService extends Service implements Playback.Callback {
         super.onCreate();
         LogHelper.d(TAG, "onCreate");
 
-        mPlayingQueue = new ArrayList<>();
+        mPlaybackThread = new HandlerThread("MusicService", Process.THREAD_PRIORITY_AUDIO);
+        mPlaybackThread.start();
+        mHandler = new Handler(mPlaybackThread.getLooper());
+        mDelayedStopHandler = new DelayedStopHandler(this, mPlaybackThread.getLooper());
+
+        mPlayingQueue = new IndexedQueue();
         mMediaProvider = new MediaProvider();
+        mConnectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        mAudioCache = AudioCache.getInstance(this);
+        mOfflineLibrary = OfflineLibrary.getInstance(this);
 
         ComponentName eventReceiver = new ComponentName(getPackageName(), MediaButtonReceiver.class.getName());
 
@@ -138,16 +250,15 @@ public class MusicService extends Service implements Playback.Callback {
         mSession = new MediaSessionCompat(this, "MusicService", eventReceiver, mediaPendingIntent);
 
         final MediaSessionCallback cb = new MediaSessionCallback();
-        mSession.setCallback(cb);
+        mSession.setCallback(cb, mHandler);
 
         setSessionToken(mSession.getSessionToken());
         mSession.setFlags(MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS |
                 MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
 
-        mPlayback = new MediaPlayback(this, mMediaProvider);
+        mPlayback = new MediaPlayback(this, mMediaProvider, mHandler);
         mPlayback.setState(PlaybackStateCompat.STATE_NONE);
         mPlayback.setCallback(this);
-        mPlayback.start();
 
         Context context = getApplicationContext();
         Intent intent = new Intent(context, PlayerActivity.class);
@@ -159,13 +270,51 @@ public class MusicService extends Service implements Playback.Callback {
         Bundle sessionExtras = new Bundle();
         mSession.setExtras(sessionExtras);
 
-        updatePlaybackState(null);
-
         if (PreferenceHelper.isNotificationsEnabled(this)) {
             mMediaNotificationManager = new MediaNotificationManager(this);
         }
 
         mCallbacks = new HashMap<>();
+
+        mQueueStore = new QueueStore(this, mPlaybackThread.getLooper(), new QueueStore.Source() {
+            @Override
+            public QueueStore.State getQueueState() {
+                return QueueStore.createState(mNextQueueId, mQueueVersion, mPlayingQueue.asList(),
+                        mMediaProvider);
+            }
+        });
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mOnline = isNetworkConnected();
+                mPlayback.start();
+                updatePlaybackState(null);
+                restoreQueue();
+            }
+        });
+        registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION),
+                null, mHandler);
+    }
+
+    /**
+     * Restores the queue saved by a previous process, without touching the network.
+     */
+    private void restoreQueue() {
+        long start = SystemClock.elapsedRealtime();
+        QueueStore.State state = mQueueStore.load();
+        if (state == null) {
+            return;
+        }
+        mMediaProvider.addTracks(Arrays.asList(state.tracks));
+        for (int i = 0; i < state.tracks.length; i++) {
+            mPlayingQueue.add(QueueHelper.createQueueItem(state.tracks[i], state.queueIds[i]));
+        }
+        mNextQueueId = state.nextQueueId;
+        mQueueVersion = state.snapshotVersion;
+        mPositionRestorePending = !mPlayingQueue.isEmpty();
+        mSession.setQueue(new ArrayList<>(mPlayingQueue.asList()));
+        LogHelper.d(TAG, "Restored ", mPlayingQueue.size(), " queue items in ",
+                SystemClock.elapsedRealtime() - start, "ms");
     }
 
     @Override
@@ -173,42 +322,32 @@ public class MusicService extends Service implements Playback.Callback {
         if (startIntent != null) {
             String action = startIntent.getAction();
 
-            boolean resumeCurrentTrack = false;
-            int trackPosition = startIntent.getIntExtra(PlayerFragment.KEY_SELECTED_TRACK, -1);
-            String json = startIntent.getStringExtra(PlayerFragment.KEY_TRACKS);
-            if (json != null && !json.equals("null")) {
-                final Type mTrackListType = new TypeToken<List<Track>>() {}.getType();
-                List<Track> tracks = new Gson().fromJson(json, mTrackListType);
-                if (mMediaProvider.isEqual(tracks, mTracks) && mCurrentIndexOnQueue != -1) {
-                    int indexOnQueue =
-                            QueueHelper.getMediaIndexOnQueue(mPlayingQueue, tracks.get(trackPosition).id);
-                    if (mCurrentIndexOnQueue == indexOnQueue) {
-                        // Resumes current track when selected from top tracks list
-                        resumeCurrentTrack = true;
-                    } else {
-                        mCurrentIndexOnQueue = indexOnQueue;
-                    }
-                } else {
-                    mTracks = tracks;
-                    mMediaProvider.setMusicList(tracks);
-                    mPlayingQueue = QueueHelper.getPlayingQueue(mMediaProvider);
-                    mCurrentIndexOnQueue =
-                            QueueHelper.getMediaIndexOnQueue(mPlayingQueue, tracks.get(trackPosition).id);
+            final String command = startIntent.getStringExtra(CMD_NAME);
+            if (Intent.ACTION_MEDIA_BUTTON.equals(action)) {
+                // Forwarded by MediaButtonReceiver, possibly after the process was killed
+                KeyEvent keyEvent = startIntent.getParcelableExtra(Intent.EXTRA_KEY_EVENT);
+                if (keyEvent != null) {
+                    mSession.getController().dispatchMediaButtonEvent(keyEvent);
                 }
-            } else {
-                // Resumes current track when player UI is launched from notification
-                resumeCurrentTrack = true;
-            }
-
-            String command = startIntent.getStringExtra(CMD_NAME);
-            if (ACTION_CMD.equals(action)) {
-                if (CMD_PLAY.equals(command) && !resumeCurrentTrack) {
-                    handlePlayRequest();
-                } else if (CMD_PAUSE.equals(command)) {
-                    if (mPlayback != null && mPlayback.isPlaying()) {
-                        handlePauseRequest();
+            } else if (ACTION_CMD.equals(action)) {
+                // The player UI hands its queue over through MusicBinder; tracks in the
+                // Intent are only expected from components that don't bind
+                final List<TrackItem> tracks = startIntent.getParcelableArrayListExtra(PlayerFragment.KEY_TRACKS);
+                final int trackPosition = startIntent.getIntExtra(PlayerFragment.KEY_SELECTED_TRACK, 0);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (CMD_PLAY.equals(command) && tracks != null) {
+                            handlePlayFromQueue(QueueSnapshot.of(tracks), trackPosition);
+                        } else if (CMD_ENQUEUE.equals(command) && tracks != null) {
+                            handleEnqueue(tracks);
+                        } else if (CMD_PAUSE.equals(command)) {
+                            if (mPlayback.isPlaying()) {
+                                handlePauseRequest();
+                            }
+                        }
                     }
-                }
+                });
             }
         }
         // Reset the delay handler to enqueue a message to stop the service if
@@ -221,13 +360,42 @@ public class MusicService extends Service implements Playback.Callback {
     @Override
     public void onDestroy() {
         LogHelper.d(TAG, "onDestroy");
-        // Service is being killed, so make sure we release our resources
-        handleStopRequest(null);
-
-        mDelayedStopHandler.removeCallbacksAndMessages(null);
-        // Always release the MediaSession to clean up resources
-        // and notify associated MediaController(s).
-        mSession.release();
+        mMainHandler.removeCallbacks(mStartNotificationTask);
+        unregisterReceiver(mConnectivityReceiver);
+        // After anything already posted, so that requests made before the service was
+        // destroyed are not lost, but waited for, so that nothing is released after the
+        // process may already be gone
+        final CountDownLatch released = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Service is being killed, so make sure we release our resources
+                    handleStopRequest(null);
+                    mHandler.removeCallbacks(mUpdateSessionQueueTask);
+                    mQueueStore.flush();
+
+                    mDelayedStopHandler.removeCallbacksAndMessages(null);
+                    // Always release the MediaSession to clean up resources
+                    // and notify associated MediaController(s).
+                    mSession.release();
+                } finally {
+                    released.countDown();
+                }
+            }
+        });
+        try {
+            if (!released.await(TEARDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LogHelper.w(TAG, "Timed out releasing the playback resources");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            mPlaybackThread.quitSafely();
+        } else {
+            mPlaybackThread.quit();
+        }
     }
 
     /**
@@ -253,12 +421,227 @@ public class MusicService extends Service implements Playback.Callback {
         return mSessionToken;
     }
 
+    /**
+     * Plays the track at the given position of the snapshot. The playing queue is only
+     * rebuilt if the snapshot differs from the one it was built from, and selecting the
+     * track that is already playing resumes it rather than starting it over.
+     */
+    public void playFromQueue(final QueueSnapshot snapshot, final int position) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handlePlayFromQueue(snapshot, position);
+            }
+        });
+    }
+
+    /**
+     * Starts buffering a track the user is about to play, e.g. while their finger is on
+     * its row, so that playing it with {@link #playFromQueue} picks up where this left off.
+     *
+     * @param track the track, or null to discard the work because it won't be played
+     */
+    public void preload(final TrackItem track) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handlePreload(track);
+            }
+        });
+    }
+
+    /**
+     * Adds the tracks to the end of the queue.
+     */
+    public void enqueue(final List<TrackItem> tracks) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handleEnqueue(tracks);
+            }
+        });
+    }
+
+    /**
+     * Adds the tracks right after the current one, so that they play next.
+     */
+    public void playNext(final List<TrackItem> tracks) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handlePlayNext(tracks);
+            }
+        });
+    }
+
+    /**
+     * Removes an item from the queue. If it is the current one, playback moves on to
+     * the item that takes its place.
+     */
+    public void removeQueueItem(final long queueId) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handleRemoveQueueItem(queueId);
+            }
+        });
+    }
+
+    /**
+     * Moves an item to the given index of the queue.
+     */
+    public void moveQueueItem(final long queueId, final int toIndex) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handleMoveQueueItem(queueId, toIndex);
+            }
+        });
+    }
+
+    private void handlePlayFromQueue(QueueSnapshot snapshot, int position) {
+        if (position < 0 || position >= snapshot.size()) {
+            LogHelper.w(TAG, "playFromQueue: invalid position ", position, " queue size=", snapshot.size());
+            return;
+        }
+        boolean sameQueue = mCurrentIndexOnQueue != -1 && snapshot.getVersion() == mQueueVersion;
+        if (sameQueue && position == mCurrentIndexOnQueue) {
+            // Resumes current track when selected from top tracks list
+            return;
+        }
+        if (!sameQueue) {
+            mPlayingQueue.clear();
+            // Metadata of the tracks the new queue shares with the old one is kept
+            mMediaProvider.retainTracks(snapshot.getIds());
+            mCurrentIndexOnQueue = -1;
+            insertTracks(0, snapshot.getTracks());
+            mQueueVersion = snapshot.getVersion();
+        }
+        // Until it is edited, the queue has the same order as the snapshot
+        mCurrentIndexOnQueue = position;
+        mPreloadedMediaId = null;
+        // Played before the queue change buffers the next item, which would replace a preload
+        handlePlayRequest();
+        if (!sameQueue) {
+            onQueueChanged();
+        }
+    }
+
+    private void handlePreload(TrackItem track) {
+        if (mPreloadedMediaId != null) {
+            mMediaProvider.removeTrack(mPreloadedMediaId);
+            mPreloadedMediaId = null;
+        }
+        if (track == null) {
+            // Go back to buffering the next item of the queue, if anything
+            if (mPlayback.isPlaying()) {
+                prepareNextQueueItem();
+            } else {
+                mPlayback.prepareNext(null);
+            }
+            return;
+        }
+        if (mMediaProvider.getTrack(track.id) == null) {
+            mMediaProvider.addTracks(Collections.singletonList(track));
+            mPreloadedMediaId = track.id;
+        }
+        LogHelper.d(TAG, "Preloading ", track.id);
+        mPlayback.preload(QueueHelper.createQueueItem(track, -1));
+    }
+
+    private void handleEnqueue(List<TrackItem> tracks) {
+        insertTracks(mPlayingQueue.size(), tracks);
+        mQueueVersion = NO_QUEUE_VERSION;
+        onQueueChanged();
+    }
+
+    private void handlePlayNext(List<TrackItem> tracks) {
+        insertTracks(mCurrentIndexOnQueue + 1, tracks);
+        mQueueVersion = NO_QUEUE_VERSION;
+        onQueueChanged();
+    }
+
+    private void handleRemoveQueueItem(long queueId) {
+        int index = mPlayingQueue.indexOf(queueId);
+        if (index == -1) {
+            return;
+        }
+        String mediaId = mPlayingQueue.remove(index).getDescription().getMediaId();
+        if (mPlayingQueue.indexOf(mediaId) == -1) {
+            mMediaProvider.removeTrack(mediaId);
+        }
+        mQueueVersion = NO_QUEUE_VERSION;
+        boolean removedCurrent = index == mCurrentIndexOnQueue;
+        if (index < mCurrentIndexOnQueue) {
+            mCurrentIndexOnQueue--;
+        } else if (removedCurrent && mCurrentIndexOnQueue >= mPlayingQueue.size()) {
+            mCurrentIndexOnQueue = mPlayingQueue.isEmpty() ? -1 : 0;
+        }
+        onQueueChanged();
+        if (index <= mCurrentIndexOnQueue || removedCurrent) {
+            notifyTrackChanged();
+        }
+        if (removedCurrent) {
+            if (mCurrentIndexOnQueue == -1) {
+                handleStopRequest(null);
+            } else if (mPlayback.isPlaying()) {
+                handlePlayRequest();
+            } else {
+                updateMetadata();
+            }
+        }
+    }
+
+    private void handleMoveQueueItem(long queueId, int toIndex) {
+        int from = mPlayingQueue.indexOf(queueId);
+        if (from == -1 || toIndex < 0 || toIndex >= mPlayingQueue.size()) {
+            return;
+        }
+        boolean hasCurrent = QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue);
+        long currentQueueId = hasCurrent ? mPlayingQueue.get(mCurrentIndexOnQueue).getQueueId() : -1;
+        mPlayingQueue.move(from, toIndex);
+        if (hasCurrent) {
+            mCurrentIndexOnQueue = mPlayingQueue.indexOf(currentQueueId);
+        }
+        mQueueVersion = NO_QUEUE_VERSION;
+        onQueueChanged();
+        notifyTrackChanged();
+    }
+
+    private void insertTracks(int index, List<TrackItem> tracks) {
+        mMediaProvider.addTracks(tracks);
+        int position = index;
+        for (TrackItem track : tracks) {
+            mPlayingQueue.add(position++, QueueHelper.createQueueItem(track, mNextQueueId++));
+        }
+        if (mCurrentIndexOnQueue != -1 && mCurrentIndexOnQueue >= index) {
+            mCurrentIndexOnQueue += tracks.size();
+        }
+    }
+
+    /**
+     * Publishes and saves the queue after an edit. Several edits in a row result in a
+     * single update of the session queue, and are saved together.
+     */
+    private void onQueueChanged() {
+        if (!mSessionQueueUpdatePending) {
+            mSessionQueueUpdatePending = true;
+            mHandler.post(mUpdateSessionQueueTask);
+        }
+        mQueueStore.requestSave();
+        if (mPlayback.isPlaying()) {
+            prepareNextQueueItem();
+        }
+        updatePlaybackState(null);
+    }
+
     private final class MediaSessionCallback extends MediaSessionCompat.Callback {
 
         @Override
         public void onPlay() {
             LogHelper.d(TAG, "play");
             if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
+                restorePosition();
                 handlePlayRequest();
             }
         }
@@ -293,13 +676,21 @@ public class MusicService extends Service implements Playback.Callback {
         @Override
         public void onSkipToNext() {
             LogHelper.d(TAG, "skipToNext");
-            mCurrentIndexOnQueue++;
-            if (mPlayingQueue != null && mCurrentIndexOnQueue >= mPlayingQueue.size()) {
-                mCurrentIndexOnQueue = 0;
+            restorePosition();
+            int index = mCurrentIndexOnQueue + 1;
+            if (mPlayingQueue != null && index >= mPlayingQueue.size()) {
+                index = 0;
             }
+            index = findPlayableIndex(index, 1);
+            if (index == -1) {
+                // Keep the current item, so that playback can resume once back online
+                handleStopRequest(getString(R.string.error_no_offline_tracks));
+                return;
+            }
+            mCurrentIndexOnQueue = index;
             notifyTrackChanged();
             if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
-                handlePlayRequest();
+                handleSkipRequest();
             } else {
                 LogHelper.e(TAG, "skipToNext: cannot skip to next. next Index=" +
                         mCurrentIndexOnQueue + " queue length=" +
@@ -311,13 +702,20 @@ public class MusicService extends Service implements Playback.Callback {
         @Override
         public void onSkipToPrevious() {
             LogHelper.d(TAG, "skipToPrevious");
-            mCurrentIndexOnQueue--;
-            if (mPlayingQueue != null && mCurrentIndexOnQueue < 0) {
-                mCurrentIndexOnQueue = 0;
+            restorePosition();
+            int index = mCurrentIndexOnQueue - 1;
+            if (mPlayingQueue != null && index < 0) {
+                index = 0;
+            }
+            index = findPlayableIndex(index, -1);
+            if (index == -1) {
+                handleStopRequest(getString(R.string.error_no_offline_tracks));
+                return;
             }
+            mCurrentIndexOnQueue = index;
             notifyTrackChanged();
             if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
-                handlePlayRequest();
+                handleSkipRequest();
             } else {
                 LogHelper.e(TAG, "skipToPrevious: cannot skip to previous. previous Index=" +
                         mCurrentIndexOnQueue + " queue length=" +
@@ -327,8 +725,63 @@ public class MusicService extends Service implements Playback.Callback {
         }
     }
 
+    /**
+     * Plays the current item after a skip. A skip that follows the previous one within
+     * {@link #SKIP_SETTLE_DELAY} only updates the metadata, and playback waits for the
+     * skipping to settle, so that a burst of skips prepares only the item it ends on. The
+     * item after the one played isn't prepared until then either.
+     */
+    private void handleSkipRequest() {
+        long now = SystemClock.elapsedRealtime();
+        boolean inBurst = now - mLastSkipTime < SKIP_SETTLE_DELAY;
+        mLastSkipTime = now;
+        if (!inBurst) {
+            handlePlayRequest();
+            return;
+        }
+        LogHelper.d(TAG, "Deferring playback of skipped to item ", mCurrentIndexOnQueue);
+        if (!mSkipPending) {
+            // The start of a burst: silence the item the first skip started rather than
+            // let it play under another item's metadata, and drop what it was preparing.
+            // Not stopped, which would drop the notification and audio focus only for the
+            // last skip to take them again
+            mPlayback.silence();
+            mPlayback.setState(PlaybackStateCompat.STATE_BUFFERING);
+        }
+        cancelPendingSkip();
+        mSkipPending = true;
+        updateMetadata();
+        updatePlaybackState(null);
+        mHandler.postDelayed(mSkipTask, SKIP_SETTLE_DELAY);
+    }
+
+    private void cancelPendingSkip() {
+        mHandler.removeCallbacks(mSkipTask);
+        mHandler.removeCallbacks(mPrepareNextTask);
+        mSkipPending = false;
+    }
+
+    /**
+     * Prepares the item after the current one, but only once skipping has settled, since
+     * a skip that follows within {@link #SKIP_SETTLE_DELAY} moves away from it.
+     */
+    private void schedulePrepareNext() {
+        mHandler.removeCallbacks(mPrepareNextTask);
+        if (mSkipPending) {
+            // The deferred play reports playing again when the burst ends
+            return;
+        }
+        long sinceSkip = SystemClock.elapsedRealtime() - mLastSkipTime;
+        if (sinceSkip >= SKIP_SETTLE_DELAY) {
+            prepareNextQueueItem();
+        } else {
+            mHandler.postDelayed(mPrepareNextTask, SKIP_SETTLE_DELAY - sinceSkip);
+        }
+    }
+
     private void handlePlayRequest() {
         LogHelper.d(TAG, "handlePlayRequest: mState=" + mPlayback.getState());
+        cancelPendingSkip();
 
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         if (!mServiceStarted) {
@@ -352,6 +805,7 @@ public class MusicService extends Service implements Playback.Callback {
 
     private void handlePauseRequest() {
         LogHelper.d(TAG, "handlePauseRequest: mState=" + mPlayback.getState());
+        cancelPendingSkip();
         mPlayback.pause();
         // reset the delayed stop handler.
         mDelayedStopHandler.removeCallbacksAndMessages(null);
@@ -360,6 +814,7 @@ public class MusicService extends Service implements Playback.Callback {
 
     private void handleStopRequest(String withError) {
         LogHelper.d(TAG, "handleStopRequest: mState=" + mPlayback.getState() + " error=", withError);
+        cancelPendingSkip();
         mPlayback.stop(true);
         // reset the delayed stop handler.
         mDelayedStopHandler.removeCallbacksAndMessages(null);
@@ -397,6 +852,7 @@ public class MusicService extends Service implements Playback.Callback {
             throw e;
         }
         LogHelper.d(TAG, "Updating metadata for MediaID= " + mediaId);
+        mCurrentTrack = mMediaProvider.getTrack(mediaId);
         mSession.setMetadata(track);
     }
 
@@ -430,7 +886,7 @@ public class MusicService extends Service implements Playback.Callback {
 
         if ((state == PlaybackStateCompat.STATE_PLAYING || state == PlaybackStateCompat.STATE_PAUSED)
                 && mMediaNotificationManager != null) {
-            mMediaNotificationManager.startNotification();
+            mMainHandler.post(mStartNotificationTask);
         }
     }
 
@@ -456,10 +912,17 @@ public class MusicService extends Service implements Playback.Callback {
         // The media player finished playing the current track, so we go ahead
         // and start the next.
         if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-            mCurrentIndexOnQueue++;
-            if (mCurrentIndexOnQueue >= mPlayingQueue.size()) {
-                mCurrentIndexOnQueue = 0;
+            int index = mCurrentIndexOnQueue + 1;
+            if (index >= mPlayingQueue.size()) {
+                index = 0;
             }
+            index = findPlayableIndex(index, 1);
+            if (index == -1) {
+                // Keep the finished item, so that playback can resume once back online
+                handleStopRequest(getString(R.string.error_no_offline_tracks));
+                return;
+            }
+            mCurrentIndexOnQueue = index;
             notifyTrackChanged();
             handlePlayRequest();
         } else {
@@ -471,6 +934,103 @@ public class MusicService extends Service implements Playback.Callback {
     @Override
     public void onPlaybackStatusChanged(int state) {
         updatePlaybackState(null);
+        if (state == PlaybackStateCompat.STATE_PLAYING) {
+            schedulePrepareNext();
+        } else if (state == PlaybackStateCompat.STATE_PAUSED
+                || state == PlaybackStateCompat.STATE_STOPPED) {
+            savePosition();
+        }
+    }
+
+    /**
+     * Saves the current item and stream position, so that a media button can
+     * resume them after the process is killed.
+     */
+    private void savePosition() {
+        if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
+            long queueId = mPlayingQueue.get(mCurrentIndexOnQueue).getQueueId();
+            mQueueStore.savePosition(new QueueStore.Position(queueId, mPlayback.getCurrentStreamPosition()));
+        }
+    }
+
+    /**
+     * Moves to the item and stream position saved by a previous process, if nothing
+     * has been played since the service was created. Deferred until playback is
+     * actually requested, so that merely binding to the service doesn't pay for it.
+     */
+    private void restorePosition() {
+        if (!mPositionRestorePending || mCurrentIndexOnQueue != -1) {
+            mPositionRestorePending = false;
+            return;
+        }
+        mPositionRestorePending = false;
+        QueueStore.Position position = mQueueStore.loadPosition();
+        int index = position != null ? mPlayingQueue.indexOf(position.queueId) : -1;
+        if (index == -1) {
+            mCurrentIndexOnQueue = 0;
+            return;
+        }
+        mCurrentIndexOnQueue = index;
+        // Lets the playback prepare the item and seek to the position, rather than
+        // start it from the beginning
+        mPlayback.setCurrentMediaId(mPlayingQueue.get(index).getDescription().getMediaId());
+        mPlayback.setCurrentStreamPosition(position.streamPosition);
+        notifyTrackChanged();
+        LogHelper.d(TAG, "Restored position ", position.streamPosition, " of queue item ", index);
+    }
+
+    /**
+     * Lets the playback buffer the item that {@link #onCompletion} will move to,
+     * so the transition to it doesn't stall on the network.
+     */
+    private void prepareNextQueueItem() {
+        if (!QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
+            mPlayback.prepareNext(null);
+            return;
+        }
+        int nextIndex = mCurrentIndexOnQueue + 1;
+        if (nextIndex >= mPlayingQueue.size()) {
+            nextIndex = 0;
+        }
+        // Offline, the item completion moves to is the next one stored locally
+        nextIndex = findPlayableIndex(nextIndex, 1);
+        mPlayback.prepareNext(nextIndex == -1 || nextIndex == mCurrentIndexOnQueue ?
+                null : mPlayingQueue.get(nextIndex));
+    }
+
+    /**
+     * @return the given index while online. Offline, the index of the first item from it,
+     * stepping through the queue and wrapping around, whose preview is stored locally, or
+     * -1 if there is none.
+     */
+    private int findPlayableIndex(int index, int step) {
+        if (mOnline || !QueueHelper.isIndexPlayable(index, mPlayingQueue)) {
+            return index;
+        }
+        int size = mPlayingQueue.size();
+        for (int i = 0; i < size; i++) {
+            int candidate = ((index + step * i) % size + size) % size;
+            if (isAvailableLocally(mPlayingQueue.get(candidate).getDescription().getMediaId())) {
+                if (candidate != index) {
+                    LogHelper.d(TAG, "Offline, skipping from item ", index, " to ", candidate);
+                }
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Whether the track can be played without the network: the offline library and the
+     * preview cache both keep an in-memory index of what they hold.
+     */
+    private boolean isAvailableLocally(String mediaId) {
+        return mOfflineLibrary.isAvailable(mediaId) || mAudioCache.contains(mediaId);
+    }
+
+    private boolean isNetworkConnected() {
+        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        return info != null && info.isConnected();
     }
 
     @Override
@@ -481,11 +1041,9 @@ public class MusicService extends Service implements Playback.Callback {
     @Override
     public void onMetadataChanged(String mediaId) {
         LogHelper.d(TAG, "onMetadataChanged", mediaId);
-        List<MediaSessionCompat.QueueItem> queue = QueueHelper.getPlayingQueue(mMediaProvider);
-        int index = QueueHelper.getMediaIndexOnQueue(queue, mediaId);
+        int index = QueueHelper.getMediaIndexOnQueue(mPlayingQueue, mediaId);
         if (index > -1) {
             mCurrentIndexOnQueue = index;
-            mPlayingQueue = queue;
             updateMetadata();
         }
     }
@@ -494,18 +1052,42 @@ public class MusicService extends Service implements Playback.Callback {
         return mServiceStarted;
     }
 
+    /**
+     * @return the track at the current position of the queue, or null if there is none
+     */
+    public TrackItem getCurrentTrack() {
+        return mCurrentTrack;
+    }
+
     private void notifyTrackChanged() {
-        for (Callback cb : mCallbacks.values()) {
-            cb.onTrackChange(mCurrentIndexOnQueue);
-        }
+        final int position = mCurrentIndexOnQueue;
+        mCurrentTrack = QueueHelper.isIndexPlayable(position, mPlayingQueue) ?
+                mMediaProvider.getTrack(mPlayingQueue.get(position).getDescription().getMediaId()) : null;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Callback cb : mCallbacks.values()) {
+                    cb.onTrackChange(position);
+                }
+            }
+        });
     }
 
     private void notifyServiceStateChanged() {
-        for (Callback cb : mCallbacks.values()) {
-            cb.onServiceStateChange(mServiceStarted);
-        }
+        final boolean started = mServiceStarted;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Callback cb : mCallbacks.values()) {
+                    cb.onServiceStateChange(started);
+                }
+            }
+        });
     }
 
+    /**
+     * Called on the main thread.
+     */
     public interface Callback {
         void onTrackChange(int position);
         void onServiceStateChange(boolean started);
@@ -526,6 +1108,34 @@ public class MusicService extends Service implements Playback.Callback {
         public MusicService getService() {
             return MusicService.this;
         }
+
+        /**
+         * Hands a queue over to the service by reference and plays the track at the
+         * given position.
+         */
+        public void playFromQueue(QueueSnapshot snapshot, int position) {
+            MusicService.this.playFromQueue(snapshot, position);
+        }
+
+        public void preload(TrackItem track) {
+            MusicService.this.preload(track);
+        }
+
+        public void enqueue(List<TrackItem> tracks) {
+            MusicService.this.enqueue(tracks);
+        }
+
+        public void playNext(List<TrackItem> tracks) {
+            MusicService.this.playNext(tracks);
+        }
+
+        public void removeQueueItem(long queueId) {
+            MusicService.this.removeQueueItem(queueId);
+        }
+
+        public void moveQueueItem(long queueId, int toIndex) {
+            MusicService.this.moveQueueItem(queueId, toIndex);
+        }
     }
 
     /**
@@ -535,7 +1145,8 @@ public class MusicService extends Service implements Playback.Callback {
 
         private final WeakReference<MusicService> mWeakReference;
 
-        private DelayedStopHandler(MusicService service) {
+        private DelayedStopHandler(MusicService service, Looper looper) {
+            super(looper);
             mWeakReference = new WeakReference<>(service);
         }
 
@@ -0,0 +1,86 @@
+package com.github.mjhassanpur.spotifystreamer.api;
+
+import android.content.Context;
+
+import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import kaaes.spotify.webapi.android.SpotifyApi;
+import kaaes.spotify.webapi.android.SpotifyService;
+import retrofit.RestAdapter;
+
+/**
+ * Holds the one HTTP stack the app uses, so that every screen and the music service share
+ * its warm connections instead of each building a Retrofit/OkHttp stack of their own.
+ */
+public class ApiClient {
+
+    private static final String TAG = LogHelper.makeLogTag(ApiClient.class);
+
+    private static final String HTTP_CACHE_DIR = "http";
+    private static final long HTTP_CACHE_SIZE = 10 * 1024 * 1024;
+    // Enough idle connections for the API host, the image CDN and the preview CDN
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+    private static final int MAX_REQUESTS = 16;
+    private static final int MAX_REQUESTS_PER_HOST = 4;
+    private static final long CONNECT_TIMEOUT = 15;
+    private static final long READ_TIMEOUT = 20;
+
+    private static ApiClient sInstance;
+
+    private final OkHttpClient mHttpClient;
+    private final SpotifyService mSpotifyService;
+
+    public static synchronized ApiClient getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ApiClient(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ApiClient(Context context) {
+        mHttpClient = new OkHttpClient();
+        mHttpClient.setConnectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION));
+        mHttpClient.setConnectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS);
+        mHttpClient.setReadTimeout(READ_TIMEOUT, TimeUnit.SECONDS);
+        // Only limits asynchronous calls; Retrofit's synchronous calls run on the caller's thread
+        mHttpClient.getDispatcher().setMaxRequests(MAX_REQUESTS);
+        mHttpClient.getDispatcher().setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+        mHttpClient.setCache(new Cache(new File(context.getCacheDir(), HTTP_CACHE_DIR), HTTP_CACHE_SIZE));
+
+        RestAdapter restAdapter = new RestAdapter.Builder()
+                .setEndpoint(SpotifyApi.SPOTIFY_WEB_API_ENDPOINT)
+                .setClient(new CancelableOkClient(mHttpClient))
+                .build();
+        mSpotifyService = restAdapter.create(SpotifyService.class);
+        LogHelper.d(TAG, "Created the shared HTTP client");
+    }
+
+    public SpotifyService getSpotifyService() {
+        return mSpotifyService;
+    }
+
+    /**
+     * @return the shared client, including its HTTP cache
+     */
+    public OkHttpClient getHttpClient() {
+        return mHttpClient;
+    }
+
+    /**
+     * @return a client sharing the connection pool and dispatcher of the shared one, but
+     * without its HTTP cache. For large downloads that are cached elsewhere, such as the
+     * previews, which would otherwise push the API responses out of the cache.
+     */
+    public OkHttpClient getUncachedHttpClient() {
+        OkHttpClient client = mHttpClient.clone();
+        client.setCache(null);
+        return client;
+    }
+}
@@ -0,0 +1,320 @@
+package com.github.mjhassanpur.spotifystreamer.api;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.github.mjhassanpur.spotifystreamer.model.ArtistItem;
+import com.github.mjhassanpur.spotifystreamer.model.ImageVariants;
+import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local, persistent index of the artists seen in search results, so that suggestions
+ * can be shown as the user types without waiting for the network.
+ *
+ * Names are indexed by their normalized form and by each word in them, in a sorted array
+ * that is binary searched for the prefix. The array is rebuilt on every change and
+ * published as a whole, so that lookups on the main thread never take a lock.
+ */
+public class ArtistIndex {
+
+    private static final String TAG = LogHelper.makeLogTag(ArtistIndex.class);
+
+    private static final String FILE_NAME = "artist_index";
+    // Version 2 stores all image variants where version 1 stored a single URL
+    private static final int FORMAT_VERSION = 2;
+    // The least recently seen artists are dropped beyond this
+    private static final int MAX_ARTISTS = 2000;
+    private static final long WRITE_DELAY = 2000;
+
+    private static ArtistIndex sInstance;
+
+    private final File mFile;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // Guarded by mArtists; ordered from least to most recently seen
+    private final LinkedHashMap<String, ArtistItem> mArtists =
+            new LinkedHashMap<String, ArtistItem>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ArtistItem> eldest) {
+                    return size() > MAX_ARTISTS;
+                }
+            };
+
+    private volatile Snapshot mSnapshot = new Snapshot(new String[0], new ArtistItem[0], new boolean[0]);
+
+    private final Runnable mSaveTask = new Runnable() {
+        @Override
+        public void run() {
+            final List<ArtistItem> artists;
+            synchronized (mArtists) {
+                artists = new ArrayList<>(mArtists.values());
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(artists);
+                }
+            });
+        }
+    };
+
+    private static class Snapshot {
+        final String[] mKeys;
+        final ArtistItem[] mArtists;
+        // Whether the key is the start of the name rather than of a later word
+        final boolean[] mFullName;
+
+        Snapshot(String[] keys, ArtistItem[] artists, boolean[] fullName) {
+            mKeys = keys;
+            mArtists = artists;
+            mFullName = fullName;
+        }
+    }
+
+    private static class Key {
+        final String mKey;
+        final ArtistItem mArtist;
+        final boolean mFullName;
+
+        Key(String key, ArtistItem artist, boolean fullName) {
+            mKey = key;
+            mArtist = artist;
+            mFullName = fullName;
+        }
+    }
+
+    public static synchronized ArtistIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ArtistIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ArtistIndex(Context context) {
+        this(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * @param file where the index is kept; package-private for tests
+     */
+    ArtistIndex(File file) {
+        mFile = file;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<ArtistItem> artists = read();
+                synchronized (mArtists) {
+                    // Artists added while loading were seen more recently, so they go last
+                    Map<String, ArtistItem> added = new LinkedHashMap<>(mArtists);
+                    mArtists.clear();
+                    for (ArtistItem artist : artists) {
+                        mArtists.put(artist.id, artist);
+                    }
+                    mArtists.putAll(added);
+                    rebuild();
+                }
+                LogHelper.d(TAG, "Loaded ", artists.size(), " artists");
+            }
+        });
+    }
+
+    /**
+     * Lowercases and trims the text, so that names and queries compare the way the search does.
+     */
+    public static String normalize(String text) {
+        return text.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Adds or refreshes the given artists, e.g. from a search response. Safe to call
+     * from any thread.
+     */
+    public void addAll(List<ArtistItem> artists) {
+        if (artists == null || artists.isEmpty()) {
+            return;
+        }
+        synchronized (mArtists) {
+            for (ArtistItem artist : artists) {
+                if (artist.id != null && artist.name != null) {
+                    mArtists.put(artist.id, artist);
+                }
+            }
+            rebuild();
+        }
+        mHandler.removeCallbacks(mSaveTask);
+        mHandler.postDelayed(mSaveTask, WRITE_DELAY);
+    }
+
+    /**
+     * @return up to limit artists whose name, or a word in it, starts with the query.
+     * Matches on the start of the name come first.
+     */
+    public ArrayList<ArtistItem> lookup(String query, int limit) {
+        ArrayList<ArtistItem> results = new ArrayList<>();
+        String prefix = normalize(query);
+        if (prefix.isEmpty()) {
+            return results;
+        }
+        Snapshot snapshot = mSnapshot;
+        int start = lowerBound(snapshot.mKeys, prefix);
+        int end = start;
+        while (end < snapshot.mKeys.length && snapshot.mKeys[end].startsWith(prefix)) {
+            end++;
+        }
+        Set<String> seen = new HashSet<>();
+        for (int pass = 0; pass < 2; pass++) {
+            boolean fullName = pass == 0;
+            for (int i = start; i < end && results.size() < limit; i++) {
+                ArtistItem artist = snapshot.mArtists[i];
+                if (snapshot.mFullName[i] == fullName && seen.add(artist.id)) {
+                    results.add(artist);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the index of the first key that isn't less than the prefix. Keys repeat, e.g.
+     * for artists of the same name, and unlike {@link Arrays#binarySearch} this is always
+     * the first of equal keys.
+     */
+    private static int lowerBound(String[] keys, String prefix) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Must hold mArtists.
+     */
+    private void rebuild() {
+        List<Key> keys = new ArrayList<>(mArtists.size() * 2);
+        for (ArtistItem artist : mArtists.values()) {
+            String name = normalize(artist.name);
+            keys.add(new Key(name, artist, true));
+            for (int i = name.indexOf(' '); i != -1; i = name.indexOf(' ', i + 1)) {
+                if (i + 1 < name.length() && name.charAt(i + 1) != ' ') {
+                    keys.add(new Key(name.substring(i + 1), artist, false));
+                }
+            }
+        }
+        Collections.sort(keys, new Comparator<Key>() {
+            @Override
+            public int compare(Key lhs, Key rhs) {
+                return lhs.mKey.compareTo(rhs.mKey);
+            }
+        });
+        int count = keys.size();
+        String[] sortedKeys = new String[count];
+        ArtistItem[] artists = new ArtistItem[count];
+        boolean[] fullName = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            Key key = keys.get(i);
+            sortedKeys[i] = key.mKey;
+            artists[i] = key.mArtist;
+            fullName[i] = key.mFullName;
+        }
+        mSnapshot = new Snapshot(sortedKeys, artists, fullName);
+    }
+
+    private List<ArtistItem> read() {
+        List<ArtistItem> artists = new ArrayList<>();
+        if (!mFile.exists()) {
+            return artists;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            int version = in.readInt();
+            if (version != 1 && version != FORMAT_VERSION) {
+                return artists;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                String name = in.readUTF();
+                String images = in.readBoolean() ? in.readUTF() : null;
+                artists.add(new ArtistItem(id, name,
+                        version == 1 ? ImageVariants.fromUrl(images) : ImageVariants.decode(images)));
+            }
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Unable to read the artist index");
+            artists.clear();
+        } finally {
+            closeQuietly(in);
+        }
+        return artists;
+    }
+
+    private void write(List<ArtistItem> artists) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(artists.size());
+            for (ArtistItem artist : artists) {
+                out.writeUTF(artist.id);
+                out.writeUTF(artist.name);
+                String images = artist.images.encode();
+                out.writeBoolean(images != null);
+                if (images != null) {
+                    out.writeUTF(images);
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Unable to save the artist index");
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.github.mjhassanpur.spotifystreamer.api;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.github.mjhassanpur.spotifystreamer.model.ArtistItem;
+import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import kaaes.spotify.webapi.android.SpotifyService;
+import kaaes.spotify.webapi.android.models.Artist;
+import kaaes.spotify.webapi.android.models.Pager;
+import retrofit.RetrofitError;
+
+/**
+ * Runs artist searches as the user types. Only the latest query matters: starting a search
+ * cancels the one in flight, HTTP call included, and results that arrive for an older
+ * query are dropped. Asking again for the query that is already in flight is a no-op.
+ *
+ * Results come a page at a time; {@link #loadMore(Callback)} fetches the page after the
+ * last one delivered.
+ *
+ * Also measures how long searches take on the network, so that the caller can wait longer
+ * for the user to stop typing when each request is expensive.
+ */
+public class ArtistSearcher {
+
+    private static final String TAG = LogHelper.makeLogTag(ArtistSearcher.class);
+
+    // Two threads, so that a search whose cancellation is still unwinding doesn't hold up the next
+    private static final int MAX_CONCURRENT_REQUESTS = 2;
+    public static final int PAGE_SIZE = 20;
+    private static final long MIN_DEBOUNCE_DELAY = 150;
+    private static final long MAX_DEBOUNCE_DELAY = 600;
+    private static final long INITIAL_LATENCY = 300;
+    // Searches faster than this were served from the cache and say nothing about the network
+    private static final long CACHE_HIT_THRESHOLD = 20;
+    // Weight of the newest sample in the moving average of the latency
+    private static final float LATENCY_SMOOTHING = 0.3f;
+
+    private static ArtistSearcher sInstance;
+
+    private final CachedSpotifyService mSpotifyService;
+    private final ArtistIndex mIndex;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Only touched on the main thread
+    private int mSequence;
+    private Search mCurrent;
+    private long mLatency = INITIAL_LATENCY;
+    // The last page delivered, for loadMore
+    private String mPagedQuery;
+    private int mNextOffset;
+    private boolean mHasMore;
+
+    public interface Callback {
+        /**
+         * Called on the main thread with a page of results of the latest search.
+         *
+         * @param offset 0 for the first page of a new search, otherwise the page follows
+         *               the ones already delivered
+         * @param hasMore whether there are pages after this one
+         */
+        void onSearchResult(String query, ArrayList<ArtistItem> artists, int offset, boolean hasMore);
+
+        void onSearchError(String query, int offset, RetrofitError error);
+    }
+
+    private class Search implements Runnable {
+        final int mSequenceNumber;
+        final String mQuery;
+        final int mOffset;
+        final Callback mCallback;
+        final CancelableOkClient.Token mToken = new CancelableOkClient.Token();
+        Future<?> mFuture;
+
+        Search(int sequenceNumber, String query, int offset, Callback callback) {
+            mSequenceNumber = sequenceNumber;
+            mQuery = query;
+            mOffset = offset;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            if (mToken.isCanceled()) {
+                return;
+            }
+            long start = SystemClock.elapsedRealtime();
+            ArrayList<ArtistItem> artists = null;
+            boolean hasMore = false;
+            RetrofitError error = null;
+            Map<String, Object> options = new HashMap<>();
+            options.put(SpotifyService.OFFSET, mOffset);
+            options.put(SpotifyService.LIMIT, PAGE_SIZE);
+            CancelableOkClient.bind(mToken);
+            try {
+                Pager<Artist> pager = mSpotifyService.searchArtists(mQuery, options).artists;
+                artists = ArtistItem.fromArtists(pager.items);
+                hasMore = pager.next != null && artists != null && !artists.isEmpty();
+                mIndex.addAll(artists);
+            } catch (RetrofitError e) {
+                error = e;
+            } finally {
+                CancelableOkClient.unbind();
+            }
+            if (mToken.isCanceled()) {
+                LogHelper.d(TAG, "Search for ", mQuery, " was canceled");
+                return;
+            }
+            deliver(this, artists, hasMore, error, SystemClock.elapsedRealtime() - start);
+        }
+
+        void cancel() {
+            mToken.cancel();
+            mFuture.cancel(false);
+        }
+    }
+
+    public static synchronized ArtistSearcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ArtistSearcher(CachedSpotifyService.getInstance(context),
+                    ArtistIndex.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    private ArtistSearcher(CachedSpotifyService spotifyService, ArtistIndex index) {
+        mSpotifyService = spotifyService;
+        mIndex = index;
+    }
+
+    /**
+     * Searches for the given query in the background, replacing any search in flight.
+     * Must be called on the main thread.
+     */
+    public void search(String query, Callback callback) {
+        String normalized = ArtistIndex.normalize(query);
+        if (mCurrent != null && mCurrent.mOffset == 0 && mCurrent.mQuery.equals(normalized)
+                && mCurrent.mCallback == callback) {
+            LogHelper.d(TAG, "Coalescing search for ", normalized);
+            return;
+        }
+        cancel();
+        mPagedQuery = null;
+        mHasMore = false;
+        start(new Search(++mSequence, normalized, 0, callback));
+    }
+
+    /**
+     * Fetches the page after the last one delivered, unless a search is in flight or
+     * there are no more pages. Must be called on the main thread.
+     *
+     * @return whether a page is being fetched
+     */
+    public boolean loadMore(Callback callback) {
+        if (mCurrent != null || !mHasMore || mPagedQuery == null) {
+            return false;
+        }
+        start(new Search(++mSequence, mPagedQuery, mNextOffset, callback));
+        return true;
+    }
+
+    private void start(Search search) {
+        mCurrent = search;
+        mCurrent.mFuture = mExecutor.submit(mCurrent);
+    }
+
+    /**
+     * Cancels the search in flight, if any. Its callback won't be called.
+     */
+    public void cancel() {
+        if (mCurrent != null) {
+            mCurrent.cancel();
+            mCurrent = null;
+        }
+    }
+
+    /**
+     * @return how long to wait for the user to stop typing before searching. Half the
+     * typical network latency, within bounds.
+     */
+    public long getDebounceDelay() {
+        return Math.max(MIN_DEBOUNCE_DELAY, Math.min(MAX_DEBOUNCE_DELAY, mLatency / 2));
+    }
+
+    private void deliver(final Search search, final ArrayList<ArtistItem> artists, final boolean hasMore,
+                         final RetrofitError error, final long latency) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (error == null && latency > CACHE_HIT_THRESHOLD) {
+                    mLatency = (long) (LATENCY_SMOOTHING * latency + (1 - LATENCY_SMOOTHING) * mLatency);
+                }
+                if (search != mCurrent || search.mSequenceNumber != mSequence) {
+                    LogHelper.d(TAG, "Dropping stale results for ", search.mQuery);
+                    return;
+                }
+                mCurrent = null;
+                if (error != null) {
+                    search.mCallback.onSearchError(search.mQuery, search.mOffset, error);
+                } else {
+                    mPagedQuery = search.mQuery;
+                    mNextOffset = search.mOffset + PAGE_SIZE;
+                    mHasMore = hasMore;
+                    search.mCallback.onSearchResult(search.mQuery, artists, search.mOffset, hasMore);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,318 @@
+package com.github.mjhassanpur.spotifystreamer.api;
+
+import android.content.Context;
+import android.support.v4.util.LruCache;
+
+import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kaaes.spotify.webapi.android.SpotifyService;
+import kaaes.spotify.webapi.android.models.ArtistsPager;
+import kaaes.spotify.webapi.android.models.Tracks;
+import retrofit.RetrofitError;
+
+/**
+ * Caches the responses of the {@link SpotifyService} calls the app makes, in memory and on
+ * disk, keyed by endpoint, query and options (such as the country). Fresh responses are
+ * served without touching the network. Stale ones are still served, and refreshed in the
+ * background, until they expire.
+ *
+ * Only the calls the app uses are wrapped; SpotifyService itself has well over a hundred.
+ */
+public class CachedSpotifyService {
+
+    private static final String TAG = LogHelper.makeLogTag(CachedSpotifyService.class);
+
+    private static final String CACHE_DIR = "api";
+    private static final String ENDPOINT_SEARCH_ARTISTS = "search/artists";
+    private static final String ENDPOINT_TOP_TRACKS = "artists/top-tracks";
+
+    // Responses younger than this are served without revalidation
+    private static final long TIME_TO_LIVE = 10 * 60 * 1000;
+    // For this long after that, responses are served while being refreshed in the background
+    private static final long STALE_WHILE_REVALIDATE = 24 * 60 * 60 * 1000;
+    private static final int MEMORY_CACHE_SIZE = 50;
+
+    private static CachedSpotifyService sInstance;
+
+    private final SpotifyService mService;
+    private final Gson mGson = new Gson();
+    private final File mDirectory;
+    private final LruCache<String, Entry> mMemoryCache = new LruCache<>(MEMORY_CACHE_SIZE);
+    private final ExecutorService mRefreshExecutor = Executors.newSingleThreadExecutor();
+    private final Set<String> mRefreshing = Collections.synchronizedSet(new HashSet<String>());
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mStaleHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    private interface Fetcher<T> {
+        T fetch() throws RetrofitError;
+    }
+
+    private static class Entry {
+        final Object mValue;
+        final long mFetchedAt;
+
+        Entry(Object value, long fetchedAt) {
+            mValue = value;
+            mFetchedAt = fetchedAt;
+        }
+    }
+
+    public static synchronized CachedSpotifyService getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CachedSpotifyService(context.getApplicationContext(),
+                    ApiClient.getInstance(context).getSpotifyService());
+        }
+        return sInstance;
+    }
+
+    private CachedSpotifyService(Context context, SpotifyService service) {
+        mService = service;
+        mDirectory = new File(context.getCacheDir(), CACHE_DIR);
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            LogHelper.e(TAG, "Unable to create cache directory ", mDirectory);
+        }
+        mRefreshExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteExpiredEntries();
+            }
+        });
+    }
+
+    public ArtistsPager searchArtists(final String query, final Map<String, Object> options) {
+        return get(ENDPOINT_SEARCH_ARTISTS, query, options, ArtistsPager.class, new Fetcher<ArtistsPager>() {
+            @Override
+            public ArtistsPager fetch() {
+                return mService.searchArtists(query, options);
+            }
+        });
+    }
+
+    public ArtistsPager searchArtists(String query) {
+        return searchArtists(query, Collections.<String, Object>emptyMap());
+    }
+
+    public Tracks getArtistTopTrack(final String artistId, final Map<String, Object> options) {
+        return get(ENDPOINT_TOP_TRACKS, artistId, options, Tracks.class, new Fetcher<Tracks>() {
+            @Override
+            public Tracks fetch() {
+                return mService.getArtistTopTrack(artistId, options);
+            }
+        });
+    }
+
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    public int getStaleHitCount() {
+        return mStaleHitCount.get();
+    }
+
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return the share of requests served from the cache, stale or not
+     */
+    public float getHitRatio() {
+        int hits = mHitCount.get() + mStaleHitCount.get();
+        int total = hits + mMissCount.get();
+        return total == 0 ? 0f : (float) hits / total;
+    }
+
+    private <T> T get(String endpoint, String query, Map<String, Object> options, Class<T> type,
+                      Fetcher<T> fetcher) {
+        // Sort the options so that the same request always has the same key
+        String key = endpoint + "|" + query + "|" + new TreeMap<>(options);
+        Entry entry = mMemoryCache.get(key);
+        if (entry == null) {
+            entry = read(key, type);
+            if (entry != null) {
+                mMemoryCache.put(key, entry);
+            }
+        }
+
+        if (entry != null) {
+            long age = System.currentTimeMillis() - entry.mFetchedAt;
+            if (age < TIME_TO_LIVE) {
+                mHitCount.incrementAndGet();
+                logStats(key, "hit");
+                return type.cast(entry.mValue);
+            }
+            if (age < TIME_TO_LIVE + STALE_WHILE_REVALIDATE) {
+                mStaleHitCount.incrementAndGet();
+                logStats(key, "stale hit");
+                refresh(key, fetcher);
+                return type.cast(entry.mValue);
+            }
+        }
+
+        mMissCount.incrementAndGet();
+        logStats(key, "miss");
+        try {
+            T value = fetcher.fetch();
+            put(key, value);
+            return value;
+        } catch (RetrofitError e) {
+            if (entry != null) {
+                // Better an expired response than none at all, e.g. when offline
+                LogHelper.w(TAG, "Serving expired response for ", key);
+                return type.cast(entry.mValue);
+            }
+            throw e;
+        }
+    }
+
+    private <T> void refresh(final String key, final Fetcher<T> fetcher) {
+        if (!mRefreshing.add(key)) {
+            return;
+        }
+        mRefreshExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    put(key, fetcher.fetch());
+                } catch (RetrofitError e) {
+                    LogHelper.w(TAG, "Unable to refresh ", key);
+                } finally {
+                    mRefreshing.remove(key);
+                }
+            }
+        });
+    }
+
+    private void put(String key, Object value) {
+        if (value == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        mMemoryCache.put(key, new Entry(value, now));
+        write(key, value, now);
+    }
+
+    private void logStats(String key, String result) {
+        LogHelper.d(TAG, result, " for ", key, ", hits=", mHitCount.get(),
+                " stale=", mStaleHitCount.get(), " misses=", mMissCount.get());
+    }
+
+    private File getFile(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(mDirectory, name.toString());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return new File(mDirectory, Integer.toHexString(key.hashCode()));
+        }
+    }
+
+    private <T> Entry read(String key, Class<T> type) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            long fetchedAt = in.readLong();
+            if (!key.equals(in.readUTF())) {
+                // A different request that hashed to the same file
+                return null;
+            }
+            ByteArrayOutputStream json = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                json.write(buffer, 0, count);
+            }
+            return new Entry(mGson.fromJson(json.toString("UTF-8"), type), fetchedAt);
+        } catch (IOException | JsonParseException e) {
+            LogHelper.w(TAG, e, "Unable to read cached response for ", key);
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void write(String key, Object value, long fetchedAt) {
+        File file = getFile(key);
+        // Concurrent requests for the same key each write their own temp file, so that
+        // whichever renames last wins with a complete entry
+        File temp = null;
+        DataOutputStream out = null;
+        try {
+            temp = File.createTempFile(file.getName(), ".tmp", mDirectory);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeLong(fetchedAt);
+            out.writeUTF(key);
+            out.write(mGson.toJson(value).getBytes("UTF-8"));
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Unable to cache response for ", key);
+            if (temp != null) {
+                temp.delete();
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void deleteExpiredEntries() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > TIME_TO_LIVE + STALE_WHILE_REVALIDATE) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.mjhassanpur.spotifystreamer.api;
+
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.ResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.BufferedSink;
+import retrofit.client.Client;
+import retrofit.client.Header;
+import retrofit.client.Request;
+import retrofit.client.Response;
+import retrofit.mime.TypedInput;
+import retrofit.mime.TypedOutput;
+
+/**
+ * A Retrofit client backed by OkHttp, like Retrofit's own OkClient, whose calls can be
+ * canceled while they are in flight. Retrofit's synchronous API offers no way to do that,
+ * so the caller binds a {@link Token} to its thread before calling the service, and
+ * cancels the token from any other thread.
+ */
+public class CancelableOkClient implements Client {
+
+    private static final ThreadLocal<Token> sToken = new ThreadLocal<>();
+
+    private final OkHttpClient mClient;
+
+    /**
+     * Cancels the HTTP call made while it was bound, including one that hasn't started yet.
+     */
+    public static class Token {
+        private Call mCall;
+        private boolean mCanceled;
+
+        public synchronized void cancel() {
+            mCanceled = true;
+            if (mCall != null) {
+                mCall.cancel();
+            }
+        }
+
+        public synchronized boolean isCanceled() {
+            return mCanceled;
+        }
+
+        private synchronized boolean attach(Call call) {
+            mCall = call;
+            return !mCanceled;
+        }
+    }
+
+    public CancelableOkClient(OkHttpClient client) {
+        mClient = client;
+    }
+
+    /**
+     * Binds the token to the calling thread, until {@link #unbind()}.
+     */
+    public static void bind(Token token) {
+        sToken.set(token);
+    }
+
+    public static void unbind() {
+        sToken.remove();
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        Call call = mClient.newCall(createRequest(request));
+        Token token = sToken.get();
+        if (token != null && !token.attach(call)) {
+            throw new IOException("Canceled");
+        }
+        return parseResponse(request.getUrl(), call.execute());
+    }
+
+    private static com.squareup.okhttp.Request createRequest(Request request) {
+        com.squareup.okhttp.Request.Builder builder = new com.squareup.okhttp.Request.Builder()
+                .url(request.getUrl())
+                .method(request.getMethod(), createRequestBody(request.getBody()));
+        for (Header header : request.getHeaders()) {
+            String value = header.getValue();
+            builder.addHeader(header.getName(), value == null ? "" : value);
+        }
+        return builder.build();
+    }
+
+    private static RequestBody createRequestBody(final TypedOutput body) {
+        if (body == null) {
+            return null;
+        }
+        final MediaType mediaType = MediaType.parse(body.mimeType());
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return mediaType;
+            }
+
+            @Override
+            public long contentLength() {
+                return body.length();
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                body.writeTo(sink.outputStream());
+            }
+        };
+    }
+
+    private static Response parseResponse(String url, com.squareup.okhttp.Response response) {
+        Headers headers = response.headers();
+        List<Header> headerList = new ArrayList<>(headers.size());
+        for (int i = 0, n = headers.size(); i < n; i++) {
+            headerList.add(new Header(headers.name(i), headers.value(i)));
+        }
+        return new Response(url, response.code(), response.message(), headerList,
+                createResponseBody(response));
+    }
+
+    private static TypedInput createResponseBody(final com.squareup.okhttp.Response response) {
+        final ResponseBody body = response.body();
+        if (body == null) {
+            return null;
+        }
+        final String contentLength = response.header("Content-Length");
+        return new TypedInput() {
+            @Override
+            public String mimeType() {
+                MediaType mediaType = body.contentType();
+                return mediaType == null ? null : mediaType.toString();
+            }
+
+            @Override
+            public long length() {
+                try {
+                    return contentLength == null ? -1 : Long.parseLong(contentLength);
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+
+            @Override
+            public InputStream in() throws IOException {
+                return body.byteStream();
+            }
+        };
+    }
+}
@@ -0,0 +1,168 @@
+package com.github.mjhassanpur.spotifystreamer.api;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+
+import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import kaaes.spotify.webapi.android.models.Track;
+import retrofit.RetrofitError;
+
+/**
+ * Speculatively fetches the top tracks of the artists shown first in the search results,
+ * so that opening one of them doesn't have to wait for the network.
+ */
+public class TopTracksPrefetcher {
+
+    private static final String TAG = LogHelper.makeLogTag(TopTracksPrefetcher.class);
+
+    // Only the first search results are prefetched
+    public static final int PREFETCH_LIMIT = 5;
+    private static final int MAX_CONCURRENT_REQUESTS = 2;
+    // Prefetches that are still waiting to start after this long are dropped as stale
+    private static final long CANCELLATION_WINDOW = 3000;
+    private static final int CACHE_SIZE = 20;
+
+    private static TopTracksPrefetcher sInstance;
+
+    private final CachedSpotifyService mSpotifyService;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS);
+    private final LruCache<String, List<Track>> mCache = new LruCache<>(CACHE_SIZE);
+    private final Map<String, Future<List<Track>>> mPending = new HashMap<>();
+
+    public static synchronized TopTracksPrefetcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TopTracksPrefetcher(CachedSpotifyService.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    private TopTracksPrefetcher(CachedSpotifyService spotifyService) {
+        mSpotifyService = spotifyService;
+    }
+
+    private static String key(String artistId, String country) {
+        return artistId + ":" + country;
+    }
+
+    /**
+     * Starts fetching the top tracks of the given artist in the background, unless
+     * they are already cached or being fetched.
+     */
+    public void prefetch(final String artistId, final String country) {
+        final String key = key(artistId, country);
+        synchronized (mPending) {
+            if (mCache.get(key) != null || mPending.containsKey(key)) {
+                return;
+            }
+            final long enqueuedAt = SystemClock.elapsedRealtime();
+            Future<List<Track>> future = mExecutor.submit(new Callable<List<Track>>() {
+                @Override
+                public List<Track> call() {
+                    try {
+                        if (SystemClock.elapsedRealtime() - enqueuedAt > CANCELLATION_WINDOW) {
+                            LogHelper.d(TAG, "Dropping stale prefetch for ", key);
+                            return null;
+                        }
+                        return fetch(artistId, country);
+                    } finally {
+                        synchronized (mPending) {
+                            mPending.remove(key);
+                        }
+                    }
+                }
+            });
+            mPending.put(key, future);
+        }
+    }
+
+    /**
+     * Cancels the prefetches that haven't started yet, for example because
+     * the search results they were made for have been replaced.
+     */
+    public void cancelAll() {
+        synchronized (mPending) {
+            for (Future<List<Track>> future : mPending.values()) {
+                future.cancel(false);
+            }
+            mPending.clear();
+        }
+    }
+
+    /**
+     * @return the cached top tracks of the given artist, or null if there are none
+     */
+    public List<Track> peek(String artistId, String country) {
+        return mCache.get(key(artistId, country));
+    }
+
+    /**
+     * Returns the top tracks of the given artist, waiting for a prefetch in progress if
+     * there is one. Must not be called on the main thread.
+     *
+     * @return the top tracks, or null if they have neither been fetched nor are being fetched
+     */
+    public List<Track> get(String artistId, String country) {
+        String key = key(artistId, country);
+        List<Track> tracks = mCache.get(key);
+        if (tracks != null) {
+            return tracks;
+        }
+        Future<List<Track>> future;
+        synchronized (mPending) {
+            future = mPending.get(key);
+        }
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException | CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the top tracks of the given artist from the cache, a prefetch in progress
+     * or the network. Must not be called on the main thread.
+     *
+     * @return the top tracks, or null if they couldn't be fetched
+     */
+    public List<Track> load(String artistId, String country) {
+        List<Track> tracks = get(artistId, country);
+        return tracks != null ? tracks : fetch(artistId, country);
+    }
+
+    /**
+     * Adds top tracks that were fetched elsewhere, so later lookups can use them.
+     */
+    public void put(String artistId, String country, List<Track> tracks) {
+        if (tracks != null) {
+            mCache.put(key(artistId, country), tracks);
+        }
+    }
+
+    private List<Track> fetch(String artistId, String country) {
+        Map<String, Object> options = new HashMap<>();
+        options.put("country", country);
+        try {
+            List<Track> tracks = mSpotifyService.getArtistTopTrack(artistId, options).tracks;
+            put(artistId, country, tracks);
+            return tracks;
+        } catch (RetrofitError e) {
+            LogHelper.w(TAG, "Unable to prefetch top tracks of ", artistId);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.github.mjhassanpur.spotifystreamer.media;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+
+import com.github.mjhassanpur.spotifystreamer.api.ApiClient;
+import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The album art shown by the player and the notification, decoded once per size and
+ * shared between them. Bitmaps are kept in a memory LRU bounded by their byte count, and
+ * their scaled down copies in a bounded disk cache behind it, so that rebuilding the
+ * notification on play/pause costs neither I/O nor decoding.
+ *
+ * Entries are keyed by the album and a size bucket. Every bucket is scaled down from the
+ * same source image, the largest variant, so that the player and the notification share
+ * the download and each size is decoded once for any view of about that size.
+ *
+ * Art downloaded for offline listening is decoded from the {@link OfflineLibrary} rather
+ * than fetched again.
+ */
+public class AlbumArtCache {
+
+    private static final String TAG = LogHelper.makeLogTag(AlbumArtCache.class);
+
+    private static final String CACHE_DIR = "album_art";
+    private static final int[] SIZE_BUCKETS = { 128, 256, 512, 1024 };
+    private static final int MAX_MEMORY_CACHE_SIZE = 12 * 1024 * 1024;
+    private static final long MAX_DISK_CACHE_SIZE = 20 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 90;
+    private static final int MAX_CONCURRENT_FETCHES = 2;
+
+    private static AlbumArtCache sInstance;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mDirectory;
+    // Guarded by itself; access ordered, so iteration starts with the least recently used file
+    private final LinkedHashMap<String, Long> mDiskEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mDiskSize;
+    private final OkHttpClient mClient;
+    private final OfflineLibrary mOfflineLibrary;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_FETCHES);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Only touched on the main thread
+    private final Map<String, List<FetchListener>> mPending = new HashMap<>();
+
+    public static abstract class FetchListener {
+        /**
+         * Called on the main thread.
+         */
+        public abstract void onFetched(String albumId, Bitmap bitmap);
+
+        public void onError(String albumId, Exception e) {
+            LogHelper.w(TAG, e, "Unable to fetch album art of ", albumId);
+        }
+    }
+
+    public static synchronized AlbumArtCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AlbumArtCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AlbumArtCache(Context context) {
+        // Use at most an eighth of the heap
+        int maxSize = (int) Math.min(MAX_MEMORY_CACHE_SIZE, Runtime.getRuntime().maxMemory() / 8);
+        mMemoryCache = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        mClient = ApiClient.getInstance(context).getUncachedHttpClient();
+        mDirectory = new File(context.getCacheDir(), CACHE_DIR);
+        mOfflineLibrary = OfflineLibrary.getInstance(context);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadDiskEntries();
+            }
+        });
+    }
+
+    /**
+     * @return the album's art at about the given size if it is in memory, without any I/O
+     */
+    public Bitmap getCached(String albumId, int size) {
+        return mMemoryCache.get(key(albumId, bucket(size)));
+    }
+
+    /**
+     * Fetches the album's art, scaled to about the given size, from memory, disk or the
+     * network. Concurrent fetches of the same bitmap share one load. Must be called on the
+     * main thread.
+     *
+     * @param url the largest variant of the art, which every size is scaled down from
+     */
+    public void fetch(final String albumId, final String url, int size, FetchListener listener) {
+        final int bucket = bucket(size);
+        final String key = key(albumId, bucket);
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            listener.onFetched(albumId, bitmap);
+            return;
+        }
+        List<FetchListener> listeners = mPending.get(key);
+        if (listeners != null) {
+            listeners.add(listener);
+            return;
+        }
+        listeners = new ArrayList<>();
+        listeners.add(listener);
+        mPending.put(key, listeners);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                Exception error = null;
+                try {
+                    bitmap = load(albumId, url, bucket);
+                } catch (IOException e) {
+                    error = e;
+                }
+                deliver(albumId, key, bitmap, error);
+            }
+        });
+    }
+
+    private void deliver(final String albumId, final String key, final Bitmap bitmap, final Exception error) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (bitmap != null) {
+                    mMemoryCache.put(key, bitmap);
+                }
+                List<FetchListener> listeners = mPending.remove(key);
+                if (listeners == null) {
+                    return;
+                }
+                for (FetchListener listener : listeners) {
+                    if (bitmap != null) {
+                        listener.onFetched(albumId, bitmap);
+                    } else {
+                        listener.onError(albumId, error != null ? error : new IOException("Unable to decode"));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Called on a worker thread.
+     */
+    private Bitmap load(String albumId, String url, int bucket) throws IOException {
+        File file = getFile(key(albumId, bucket));
+        if (file.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+            if (bitmap != null) {
+                touch(file);
+                return bitmap;
+            }
+            file.delete();
+        }
+
+        // Fetched before for another size, so it only needs scaling
+        File source = getFile(sourceKey(albumId));
+        if (source.exists()) {
+            Bitmap bitmap = decode(readFile(source), bucket);
+            if (bitmap != null) {
+                touch(source);
+                write(file, bitmap);
+                return bitmap;
+            }
+            source.delete();
+        }
+
+        File offline = mOfflineLibrary.getAlbumArtFile(url);
+        if (offline != null) {
+            Bitmap bitmap = decode(readFile(offline), bucket);
+            if (bitmap != null) {
+                write(file, bitmap);
+                return bitmap;
+            }
+        }
+
+        Response response = mClient.newCall(new Request.Builder().url(url).build()).execute();
+        if (!response.isSuccessful()) {
+            response.body().close();
+            throw new IOException("Unexpected response " + response.code());
+        }
+        byte[] data = response.body().bytes();
+        Bitmap bitmap = decode(data, bucket);
+        if (bitmap != null) {
+            write(source, data);
+            write(file, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decodes the image, subsampled and then scaled so that its larger side is at most the bucket.
+     */
+    private static Bitmap decode(byte[] data, int bucket) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        int largest = Math.max(options.outWidth, options.outHeight);
+        if (largest <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (largest / (sampleSize * 2) >= bucket) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (bitmap == null) {
+            return null;
+        }
+        largest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (largest > bucket) {
+            float scale = (float) bucket / largest;
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale),
+                    Math.round(bitmap.getHeight() * scale), true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+            }
+            bitmap = scaled;
+        }
+        return bitmap;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private void write(File file, Bitmap bitmap) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, data);
+        write(file, data.toByteArray());
+    }
+
+    private void write(File file, byte[] data) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            LogHelper.e(TAG, "Unable to create cache directory ", mDirectory);
+            return;
+        }
+        // Fetches of two sizes of the same album may write its source at the same time
+        File temp = null;
+        OutputStream out = null;
+        try {
+            temp = File.createTempFile(file.getName(), ".tmp", mDirectory);
+            out = new FileOutputStream(temp);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+            synchronized (mDiskEntries) {
+                Long previous = mDiskEntries.put(file.getName(), file.length());
+                mDiskSize += file.length() - (previous != null ? previous : 0);
+                trimDisk();
+            }
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Unable to cache album art");
+            if (temp != null) {
+                temp.delete();
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void touch(File file) {
+        file.setLastModified(System.currentTimeMillis());
+        synchronized (mDiskEntries) {
+            mDiskEntries.get(file.getName());
+        }
+    }
+
+    /**
+     * Must hold mDiskEntries.
+     */
+    private void trimDisk() {
+        Iterator<Map.Entry<String, Long>> iterator = mDiskEntries.entrySet().iterator();
+        while (mDiskSize > MAX_DISK_CACHE_SIZE && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            new File(mDirectory, entry.getKey()).delete();
+            mDiskSize -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private void loadDiskEntries() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.valueOf(lhs.lastModified()).compareTo(rhs.lastModified());
+            }
+        });
+        synchronized (mDiskEntries) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete();
+                    continue;
+                }
+                if (!mDiskEntries.containsKey(file.getName())) {
+                    mDiskEntries.put(file.getName(), file.length());
+                    mDiskSize += file.length();
+                }
+            }
+            trimDisk();
+        }
+    }
+
+    private File getFile(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(mDirectory, name.toString());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return new File(mDirectory, Integer.toHexString(key.hashCode()));
+        }
+    }
+
+    private static String key(String albumId, int bucket) {
+        return albumId + "@" + bucket;
+    }
+
+    /**
+     * @return the key of the downloaded art, which every bucket of the album is scaled from
+     */
+    private static String sourceKey(String albumId) {
+        return albumId + "@source";
+    }
+
+    /**
+     * @return the smallest bucket at least as large as the size, or the largest bucket
+     */
+    private static int bucket(int size) {
+        for (int bucket : SIZE_BUCKETS) {
+            if (bucket >= size) {
+                return bucket;
+            }
+        }
+        return SIZE_BUCKETS[SIZE_BUCKETS.length - 1];
+    }
+}
@@ -0,0 +1,249 @@
+package com.github.mjhassanpur.spotifystreamer.media;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import com.github.mjhassanpur.spotifystreamer.R;
+
+import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
+import com.github.mjhassanpur.spotifystreamer.utils.PreferenceHelper;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded on-disk cache of track previews, keyed by media ID. Entries are evicted
+ * least recently played first once the cache grows beyond the size set in the settings.
+ */
+public class AudioCache {
+
+    private static final String TAG = LogHelper.makeLogTag(AudioCache.class);
+
+    private static final String CACHE_DIR = "previews";
+    private static final String PARTIAL_SUFFIX = ".part";
+    // The entity tag of the file a partial download was taken from
+    private static final String ETAG_SUFFIX = ".etag";
+    // Partial downloads that haven't been resumed for this long are dropped
+    private static final long PARTIAL_MAX_AGE = 24 * 60 * 60 * 1000;
+
+    private static AudioCache sInstance;
+
+    private final Context mContext;
+    private final File mDirectory;
+    // Access ordered, so iteration starts with the least recently used entry
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+
+    // Held here because the preferences only keep a weak reference to their listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    if (mContext.getString(R.string.pref_key_cache_size).equals(key)) {
+                        // Lowering the size shouldn't wait for the next download to take effect
+                        trimToSize(getMaxSize());
+                    }
+                }
+            };
+
+    public static synchronized AudioCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AudioCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AudioCache(Context context) {
+        this(context, new File(context.getCacheDir(), CACHE_DIR));
+        PreferenceManager.getDefaultSharedPreferences(context)
+                .registerOnSharedPreferenceChangeListener(mPreferenceListener);
+    }
+
+    AudioCache(Context context, File directory) {
+        mContext = context;
+        mDirectory = directory;
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            LogHelper.e(TAG, "Unable to create cache directory ", mDirectory);
+        }
+        loadEntries();
+    }
+
+    /**
+     * Rebuilds the LRU order from the files left by a previous process,
+     * using their last modified time as the time they were last played.
+     */
+    private void loadEntries() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (file.getName().endsWith(PARTIAL_SUFFIX) || file.getName().endsWith(ETAG_SUFFIX)) {
+                // Kept so that an interrupted download can be resumed
+                if (now - file.lastModified() > PARTIAL_MAX_AGE) {
+                    file.delete();
+                }
+                continue;
+            }
+            mEntries.put(file.getName(), file.length());
+            mSize += file.length();
+        }
+        LogHelper.d(TAG, "Loaded ", mEntries.size(), " cached previews, size=", mSize);
+    }
+
+    /**
+     * @return the cached preview for the given media ID, or null if it isn't cached
+     */
+    public synchronized File get(String mediaId) {
+        // A get, unlike containsKey, moves the entry to the most recently used end
+        if (mEntries.get(mediaId) == null) {
+            return null;
+        }
+        File file = new File(mDirectory, mediaId);
+        if (!file.exists()) {
+            mSize -= mEntries.remove(mediaId);
+            return null;
+        }
+        // Persist the access so the LRU order survives a restart
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * @return whether the preview is cached, without counting as a use of it
+     */
+    public synchronized boolean contains(String mediaId) {
+        return mEntries.containsKey(mediaId);
+    }
+
+    /**
+     * @return the file that a download of the given media ID should be written to
+     * before it is added with {@link #put}. It may hold the start of an earlier,
+     * interrupted download.
+     */
+    File getPartialFile(String mediaId) {
+        return new File(mDirectory, mediaId + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * @return the entity tag saved with {@link #setPartialEtag}, or null if there is none
+     */
+    String getPartialEtag(String mediaId) {
+        File file = getEtagFile(mediaId);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readUTF();
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Unable to read the entity tag of ", mediaId);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Saves the entity tag of the file being written to the partial file, so that resuming
+     * the download can check the file hasn't changed since.
+     *
+     * @param etag the entity tag, or null to remove it
+     */
+    void setPartialEtag(String mediaId, String etag) {
+        File file = getEtagFile(mediaId);
+        if (etag == null) {
+            file.delete();
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(file));
+            out.writeUTF(etag);
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Unable to save the entity tag of ", mediaId);
+            file.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private File getEtagFile(String mediaId) {
+        return new File(mDirectory, mediaId + PARTIAL_SUFFIX + ETAG_SUFFIX);
+    }
+
+    /**
+     * Moves a completely written file into the cache and evicts old entries if needed.
+     *
+     * @return the file's new location, or null if it couldn't be added
+     */
+    synchronized File put(String mediaId, File file) {
+        File destination = new File(mDirectory, mediaId);
+        getEtagFile(mediaId).delete();
+        if (!file.renameTo(destination)) {
+            LogHelper.w(TAG, "Unable to add ", mediaId, " to the cache");
+            file.delete();
+            return null;
+        }
+        Long previous = mEntries.put(mediaId, destination.length());
+        if (previous != null) {
+            mSize -= previous;
+        }
+        mSize += destination.length();
+        trimToSize(getMaxSize());
+        return destination;
+    }
+
+    /**
+     * @return the size set in the settings
+     */
+    long getMaxSize() {
+        return PreferenceHelper.getAudioCacheSize(mContext);
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits in maxSize bytes.
+     */
+    public synchronized void trimToSize(long maxSize) {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (!new File(mDirectory, entry.getKey()).delete()) {
+                LogHelper.w(TAG, "Unable to evict ", entry.getKey());
+            }
+            mSize -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
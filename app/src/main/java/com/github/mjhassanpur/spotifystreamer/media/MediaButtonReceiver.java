@@ -20,12 +20,15 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 
+import com.github.mjhassanpur.spotifystreamer.MusicService;
+
 /**
  * Broadcast receiver for handling ACTION_MEDIA_BUTTON.
  *
  * This is needed to create the RemoteControlClient for controlling
- * remote route volume in lock screen. It routes media key events back
- * to main app activity.
+ * remote route volume in lock screen. It routes media key events to
+ * the music service, starting it if the process was killed, so that
+ * the media buttons can resume what was playing before.
  */
 public class MediaButtonReceiver extends BroadcastReceiver {
 
@@ -33,5 +36,12 @@ public class MediaButtonReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        if (!Intent.ACTION_MEDIA_BUTTON.equals(intent.getAction())) {
+            return;
+        }
+        Intent serviceIntent = new Intent(context, MusicService.class);
+        serviceIntent.setAction(Intent.ACTION_MEDIA_BUTTON);
+        serviceIntent.putExtras(intent);
+        context.startService(serviceIntent);
     }
 }
@@ -26,18 +26,19 @@ import android.content.IntentFilter;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
+import android.os.Handler;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.support.v7.app.NotificationCompat;
 import android.support.v7.appcompat.R.attr;
+import android.text.TextUtils;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.request.animation.GlideAnimation;
-import com.bumptech.glide.request.target.SimpleTarget;
 import com.github.mjhassanpur.spotifystreamer.R;
+import com.github.mjhassanpur.spotifystreamer.ui.ArtistSearchActivity;
 import com.github.mjhassanpur.spotifystreamer.ui.PlayerActivity;
 import com.github.mjhassanpur.spotifystreamer.MusicService;
 import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
@@ -55,7 +56,12 @@ public class MediaNotificationManager extends BroadcastReceiver {
     private static final String TAG = LogHelper.makeLogTag(MediaNotificationManager.class);
 
     private static final int NOTIFICATION_ID = 412;
+    public static final int DOWNLOAD_NOTIFICATION_ID = 413;
     private static final int REQUEST_CODE = 100;
+    // Updates closer together than this are coalesced, e.g. while seeking or buffering
+    private static final long MIN_UPDATE_INTERVAL = 500;
+    // Chronometer drift below this isn't worth re-posting the notification for
+    private static final long CHRONOMETER_TOLERANCE = 1000;
 
     public static final String ACTION_PAUSE = "com.github.mjhassanpur.spotifystreamer.ACTION_PAUSE";
     public static final String ACTION_PLAY = "com.github.mjhassanpur.spotifystreamer.ACTION_PLAY";
@@ -80,11 +86,67 @@ public class MediaNotificationManager extends BroadcastReceiver {
     private int mNotificationColor;
 
     private boolean mStarted = false;
+    private final int mLargeIconSize;
+    private final AlbumArtCache mAlbumArtCache;
+    // Decoded once, since the notification is rebuilt on every playback state change
+    private Bitmap mDefaultAlbumArt;
+
+    private final Handler mHandler = new Handler();
+    // What the posted notification shows, to skip updates that wouldn't change it
+    private Model mRenderedModel;
+    private long mLastUpdateTime;
+    private boolean mUpdatePending;
+
+    private final Runnable mUpdateTask = new Runnable() {
+        @Override
+        public void run() {
+            mUpdatePending = false;
+            updateNotification();
+        }
+    };
+
+    /**
+     * The fields of the notification the user can see.
+     */
+    private static class Model {
+        final String mTitle;
+        final String mArtist;
+        final String mAlbumId;
+        final boolean mHasAlbumArt;
+        final boolean mPlaying;
+        // When the track started, as shown by the chronometer, or 0 if it isn't shown
+        final long mChronometerBase;
+
+        Model(String title, String artist, String albumId, boolean hasAlbumArt, boolean playing,
+              long chronometerBase) {
+            mTitle = title;
+            mArtist = artist;
+            mAlbumId = albumId;
+            mHasAlbumArt = hasAlbumArt;
+            mPlaying = playing;
+            mChronometerBase = chronometerBase;
+        }
+
+        boolean looksLike(Model other) {
+            return other != null
+                    && TextUtils.equals(mTitle, other.mTitle)
+                    && TextUtils.equals(mArtist, other.mArtist)
+                    && TextUtils.equals(mAlbumId, other.mAlbumId)
+                    && mHasAlbumArt == other.mHasAlbumArt
+                    && mPlaying == other.mPlaying
+                    && (mChronometerBase == 0) == (other.mChronometerBase == 0)
+                    && Math.abs(mChronometerBase - other.mChronometerBase) < CHRONOMETER_TOLERANCE;
+        }
+    }
 
     public MediaNotificationManager(MusicService service) {
         mService = service;
         updateSessionToken();
 
+        mLargeIconSize = mService.getResources().getDimensionPixelSize(
+                android.R.dimen.notification_large_icon_width);
+        mAlbumArtCache = AlbumArtCache.getInstance(mService);
+
         mNotificationColor = ResourceHelper.getThemeColor(mService, attr.colorPrimary, Color.DKGRAY);
 
         mNotificationManager = (NotificationManager) mService.getSystemService(Context.NOTIFICATION_SERVICE);
@@ -127,6 +189,8 @@ public class MediaNotificationManager extends BroadcastReceiver {
 
                 mService.startForeground(NOTIFICATION_ID, notification);
                 mStarted = true;
+                mRenderedModel = createModel();
+                mLastUpdateTime = SystemClock.elapsedRealtime();
             }
         }
     }
@@ -136,6 +200,9 @@ public class MediaNotificationManager extends BroadcastReceiver {
      * was destroyed this has no effect.
      */
     public void stopNotification() {
+        mHandler.removeCallbacks(mUpdateTask);
+        mUpdatePending = false;
+        mRenderedModel = null;
         if (mStarted) {
             mStarted = false;
             mController.unregisterCallback(mCb);
@@ -201,6 +268,28 @@ public class MediaNotificationManager extends BroadcastReceiver {
                 PendingIntent.FLAG_CANCEL_CURRENT);
     }
 
+    /**
+     * Builds the notification showing the progress of the offline downloads, for the
+     * service running them to keep in the foreground.
+     *
+     * @param finished the number of tracks whose download has finished or failed
+     */
+    public static Notification createDownloadNotification(Context context, int finished, int total) {
+        Intent openUI = new Intent(context, ArtistSearchActivity.class);
+        openUI.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        return new NotificationCompat.Builder(context)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setColor(ResourceHelper.getThemeColor(context, attr.colorPrimary, Color.DKGRAY))
+                .setContentTitle(context.getString(R.string.download_notification_title))
+                .setContentText(context.getString(R.string.download_notification_progress, finished, total))
+                .setProgress(total, finished, false)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setContentIntent(PendingIntent.getActivity(context, REQUEST_CODE, openUI,
+                        PendingIntent.FLAG_UPDATE_CURRENT))
+                .build();
+    }
+
     private final MediaControllerCompat.Callback mCb = new MediaControllerCompat.Callback() {
         @Override
         public void onPlaybackStateChanged(PlaybackStateCompat state) {
@@ -210,10 +299,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
                     state.getState() == PlaybackStateCompat.STATE_NONE)) {
                 stopNotification();
             } else {
-                Notification notification = createNotification();
-                if (notification != null) {
-                    mNotificationManager.notify(NOTIFICATION_ID, notification);
-                }
+                requestUpdate();
             }
         }
 
@@ -221,10 +307,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
         public void onMetadataChanged(MediaMetadataCompat metadata) {
             mMetadata = metadata;
             LogHelper.d(TAG, "Received new metadata ", metadata);
-            Notification notification = createNotification();
-            if (notification != null) {
-                mNotificationManager.notify(NOTIFICATION_ID, notification);
-            }
+            requestUpdate();
         }
 
         @Override
@@ -235,6 +318,65 @@ public class MediaNotificationManager extends BroadcastReceiver {
         }
     };
 
+    /**
+     * Updates the notification, right away unless it was updated less than
+     * MIN_UPDATE_INTERVAL ago, in which case the update is coalesced with any that follow.
+     */
+    private void requestUpdate() {
+        if (mUpdatePending) {
+            return;
+        }
+        long delay = mLastUpdateTime + MIN_UPDATE_INTERVAL - SystemClock.elapsedRealtime();
+        if (delay <= 0) {
+            updateNotification();
+        } else {
+            mUpdatePending = true;
+            mHandler.postDelayed(mUpdateTask, delay);
+        }
+    }
+
+    private void updateNotification() {
+        if (!mStarted) {
+            return;
+        }
+        Model model = createModel();
+        if (model == null || model.looksLike(mRenderedModel)) {
+            return;
+        }
+        Notification notification = createNotification();
+        if (notification != null) {
+            mNotificationManager.notify(NOTIFICATION_ID, notification);
+            mRenderedModel = model;
+            mLastUpdateTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private Model createModel() {
+        if (mMetadata == null || mPlaybackState == null) {
+            return null;
+        }
+        String albumId = MediaProvider.getAlbumId(mMetadata);
+        boolean hasAlbumArt = albumId != null && mAlbumArtCache.getCached(albumId, mLargeIconSize) != null;
+        boolean playing = mPlaybackState.getState() == PlaybackStateCompat.STATE_PLAYING;
+        long chronometerBase = playing && mPlaybackState.getPosition() >= 0 ? getChronometerBase() : 0;
+        return new Model(mMetadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE),
+                mMetadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST),
+                albumId, hasAlbumArt, playing, chronometerBase);
+    }
+
+    /**
+     * @return the wall clock time at which the track would have started, given the
+     * position at the last playback state update and the time elapsed since
+     */
+    private long getChronometerBase() {
+        long position = mPlaybackState.getPosition();
+        long updateTime = mPlaybackState.getLastPositionUpdateTime();
+        if (updateTime > 0) {
+            position += (long) ((SystemClock.elapsedRealtime() - updateTime) * mPlaybackState.getPlaybackSpeed());
+        }
+        return System.currentTimeMillis() - position;
+    }
+
     private Notification createNotification() {
         LogHelper.d(TAG, "updateNotificationMetadata. mMetadata=" + mMetadata);
         if (mMetadata == null || mPlaybackState == null) {
@@ -251,7 +393,16 @@ public class MediaNotificationManager extends BroadcastReceiver {
         notificationBuilder.addAction(R.drawable.ic_skip_next_white_24dp,
                 mService.getString(R.string.media_label_next), mNextIntent);
 
-        Bitmap albumArt = BitmapFactory.decodeResource(mService.getResources(), R.drawable.ic_launcher);
+        String albumId = MediaProvider.getAlbumId(mMetadata);
+        String albumArtUrl = mMetadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI);
+        Bitmap albumArt = albumId != null ? mAlbumArtCache.getCached(albumId, mLargeIconSize) : null;
+        boolean fetchAlbumArt = albumId != null && albumArtUrl != null && albumArt == null;
+        if (albumArt == null) {
+            if (mDefaultAlbumArt == null) {
+                mDefaultAlbumArt = BitmapFactory.decodeResource(mService.getResources(), R.drawable.ic_launcher);
+            }
+            albumArt = mDefaultAlbumArt;
+        }
 
         notificationBuilder
                 .setStyle(new NotificationCompat.MediaStyle()
@@ -269,18 +420,17 @@ public class MediaNotificationManager extends BroadcastReceiver {
 
         setNotificationPlaybackState(notificationBuilder);
 
-        String albumArtUrl = mMetadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI);
-        if (albumArtUrl != null) {
-            Glide.with(mService)
-                    .load(albumArtUrl)
-                    .asBitmap()
-                    .into(new SimpleTarget<Bitmap>() {
-                        @Override
-                        public void onResourceReady(Bitmap resource, GlideAnimation<? super Bitmap> glideAnimation) {
-                            notificationBuilder.setLargeIcon(resource);
-                            mNotificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
-                        }
-                    });
+        if (fetchAlbumArt) {
+            mAlbumArtCache.fetch(albumId, albumArtUrl, mLargeIconSize, new AlbumArtCache.FetchListener() {
+                @Override
+                public void onFetched(String albumId, Bitmap bitmap) {
+                    // Rebuilt rather than reusing the builder, in case the playback state changed
+                    // in the meantime. The art is now in memory, so this doesn't fetch again.
+                    if (mStarted && mMetadata != null && albumId.equals(MediaProvider.getAlbumId(mMetadata))) {
+                        requestUpdate();
+                    }
+                }
+            });
         }
 
         return notificationBuilder.build();
@@ -311,10 +461,11 @@ public class MediaNotificationManager extends BroadcastReceiver {
             return;
         }
         if (mPlaybackState.getState() == PlaybackStateCompat.STATE_PLAYING && mPlaybackState.getPosition() >= 0) {
+            long chronometerBase = getChronometerBase();
             LogHelper.d(TAG, "updateNotificationPlaybackState. updating playback position to ",
-                    (System.currentTimeMillis() - mPlaybackState.getPosition()) / 1000, " seconds");
+                    (System.currentTimeMillis() - chronometerBase) / 1000, " seconds");
             builder
-                    .setWhen(System.currentTimeMillis() - mPlaybackState.getPosition())
+                    .setWhen(chronometerBase)
                     .setShowWhen(true)
                     .setUsesChronometer(true);
         } else {
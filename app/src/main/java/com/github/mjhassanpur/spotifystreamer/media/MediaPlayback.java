@@ -23,14 +23,20 @@ import android.content.IntentFilter;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.text.TextUtils;
 
 import com.github.mjhassanpur.spotifystreamer.MusicService;
+import com.github.mjhassanpur.spotifystreamer.api.ApiClient;
 import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 
 import static android.media.MediaPlayer.OnCompletionListener;
@@ -42,6 +48,10 @@ import static android.support.v4.media.session.MediaSessionCompat.QueueItem;
 /**
  * A class that implements media playback using {@link android.media.MediaPlayer}
  *
+ * Must only be used on the thread of the handler it is given. The media players are
+ * created there too, so their events arrive on it, and audio focus changes and the
+ * noisy broadcast are forwarded to it.
+ *
  * @see <a href="https://github.com/googlesamples/android-UniversalMusicPlayer/blob/master/mobile/src/main/java/com/example/android/uamp/LocalPlayback.java"></a>
  */
 public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeListener,
@@ -63,11 +73,15 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     private static final int AUDIO_FOCUSED  = 2;
 
     private final MusicService mService;
+    private final Handler mHandler;
     private final WifiManager.WifiLock mWifiLock;
     private int mState;
     private boolean mPlayOnFocusGain;
     private Callback mCallback;
     private MediaProvider mMediaProvider;
+    private final AudioCache mAudioCache;
+    private final OfflineLibrary mOfflineLibrary;
+    private final StreamProxy mStreamProxy;
     private volatile boolean mAudioNoisyReceiverRegistered;
     private volatile int mCurrentStreamPosition;
     private volatile String mCurrentMediaId;
@@ -77,6 +91,15 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     private AudioManager mAudioManager;
     private MediaPlayer mMediaPlayer;
 
+    // A second player that prepares the next queue item while the current one plays,
+    // so that track transitions don't have to wait for the network.
+    private MediaPlayer mNextMediaPlayer;
+    private String mNextMediaId;
+    private boolean mNextMediaPlayerPrepared;
+    private boolean mNextMediaPlayerChained;
+    // Whether the next player may be chained, i.e. it is the next item of the queue
+    private boolean mNextMediaPlayerChainable;
+
     private IntentFilter mAudioNoisyIntentFilter = new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
 
     private BroadcastReceiver mAudioNoisyReceiver = new BroadcastReceiver() {
@@ -94,9 +117,13 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         }
     };
 
-    public MediaPlayback(MusicService service, MediaProvider mediaProvider) {
+    public MediaPlayback(MusicService service, MediaProvider mediaProvider, Handler handler) {
         mService = service;
+        mHandler = handler;
         mMediaProvider = mediaProvider;
+        mAudioCache = AudioCache.getInstance(service);
+        mOfflineLibrary = OfflineLibrary.getInstance(service);
+        mStreamProxy = new StreamProxy(mAudioCache, ApiClient.getInstance(service).getUncachedHttpClient());
         mAudioManager = (AudioManager) service.getSystemService(Context.AUDIO_SERVICE);
         // Create the Wifi lock (this does not acquire the lock, this just creates it)
         mWifiLock = ((WifiManager) service.getSystemService(Context.WIFI_SERVICE))
@@ -105,6 +132,7 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
 
     @Override
     public void start() {
+        startStreamProxy();
     }
 
     @Override
@@ -120,6 +148,18 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         if (mWifiLock.isHeld()) {
             mWifiLock.release();
         }
+        mStreamProxy.stop();
+    }
+
+    @Override
+    public void silence() {
+        mCurrentStreamPosition = 0;
+        // So that the next play() prepares its item again, even if it is the same one
+        mCurrentMediaId = null;
+        releaseNextMediaPlayer();
+        if (mMediaPlayer != null) {
+            mMediaPlayer.reset();
+        }
     }
 
     @Override
@@ -148,11 +188,27 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                 mMediaPlayer.getCurrentPosition() : mCurrentStreamPosition;
     }
 
+    @Override
+    public void setCurrentStreamPosition(int pos) {
+        mCurrentStreamPosition = pos;
+    }
+
+    @Override
+    public void setCurrentMediaId(String mediaId) {
+        mCurrentMediaId = mediaId;
+    }
+
+    @Override
+    public String getCurrentMediaId() {
+        return mCurrentMediaId;
+    }
+
     @Override
     public void play(QueueItem item) {
         mPlayOnFocusGain = true;
         tryToGetAudioFocus();
         registerAudioNoisyReceiver();
+        startStreamProxy();
         String mediaId = item.getDescription().getMediaId();
         boolean mediaHasChanged = !TextUtils.equals(mediaId, mCurrentMediaId);
         if (mediaHasChanged) {
@@ -162,9 +218,12 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
 
         if (mState == PlaybackStateCompat.STATE_PAUSED && !mediaHasChanged && mMediaPlayer != null) {
             configMediaPlayerState();
+        } else if (mediaHasChanged && mNextMediaPlayer != null && TextUtils.equals(mediaId, mNextMediaId)) {
+            swapToNextMediaPlayer();
         } else {
             mState = PlaybackStateCompat.STATE_STOPPED;
             relaxResources(false); // release everything except MediaPlayer
+            releaseNextMediaPlayer();
             MediaMetadataCompat track = mMediaProvider.getMusic(item.getDescription().getMediaId());
 
             String source = track.getString(MediaProvider.CUSTOM_METADATA_TRACK_SOURCE);
@@ -175,7 +234,14 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                 mState = PlaybackStateCompat.STATE_BUFFERING;
 
                 mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-                mMediaPlayer.setDataSource(source);
+                if (setDataSource(mMediaPlayer, mediaId, source)) {
+                    // A local file prepares in a few milliseconds, so there is nothing to
+                    // buffer: prepare it right away and start playing without reporting
+                    // the buffering state.
+                    mMediaPlayer.prepare();
+                    configMediaPlayerState();
+                    return;
+                }
 
                 // Starts preparing the media player in the background. When
                 // it's done, it will call our OnPreparedListener (that is,
@@ -201,6 +267,53 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         }
     }
 
+    @Override
+    public void prepareNext(QueueItem item) {
+        prepareNext(item, true);
+    }
+
+    @Override
+    public void preload(QueueItem item) {
+        startStreamProxy();
+        prepareNext(item, false);
+    }
+
+    private void prepareNext(QueueItem item, boolean chainable) {
+        String mediaId = item != null ? item.getDescription().getMediaId() : null;
+        if (mediaId == null || TextUtils.equals(mediaId, mCurrentMediaId)) {
+            releaseNextMediaPlayer();
+            return;
+        }
+        if (mNextMediaPlayer != null && TextUtils.equals(mediaId, mNextMediaId)) {
+            // Already preparing (or prepared) the requested item
+            if (chainable && !mNextMediaPlayerChainable) {
+                mNextMediaPlayerChainable = true;
+                chainNextMediaPlayer();
+            }
+            return;
+        }
+        releaseNextMediaPlayer();
+
+        MediaMetadataCompat track = mMediaProvider.getMusic(mediaId);
+        if (track == null) {
+            return;
+        }
+        String source = track.getString(MediaProvider.CUSTOM_METADATA_TRACK_SOURCE);
+        LogHelper.d(TAG, "prepareNext. mediaId=", mediaId);
+
+        try {
+            mNextMediaPlayer = createMediaPlayer();
+            mNextMediaId = mediaId;
+            mNextMediaPlayerChainable = chainable;
+            mNextMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            setDataSource(mNextMediaPlayer, mediaId, source);
+            mNextMediaPlayer.prepareAsync();
+        } catch (IOException ex) {
+            LogHelper.e(TAG, ex, "Exception preparing next song");
+            releaseNextMediaPlayer();
+        }
+    }
+
     @Override
     public void pause() {
         if (mState == PlaybackStateCompat.STATE_PLAYING) {
@@ -309,7 +422,17 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     }
 
     @Override
-    public void onAudioFocusChange(int focusChange) {
+    public void onAudioFocusChange(final int focusChange) {
+        if (Looper.myLooper() != mHandler.getLooper()) {
+            // The audio manager calls back on the main thread
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onAudioFocusChange(focusChange);
+                }
+            });
+            return;
+        }
         LogHelper.d(TAG, "onAudioFocusChange. focusChange=", focusChange);
         if (focusChange == AudioManager.AUDIOFOCUS_GAIN) {
             // We have gained focus:
@@ -343,6 +466,7 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
             mMediaPlayer.start();
             mState = PlaybackStateCompat.STATE_PLAYING;
         }
+        chainNextMediaPlayer();
         if (mCallback != null) {
             mCallback.onPlaybackStatusChanged(mState);
         }
@@ -350,6 +474,9 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
 
     @Override
     public void onCompletion(MediaPlayer player) {
+        if (player != mMediaPlayer) {
+            return;
+        }
         LogHelper.d(TAG, "onCompletion from MediaPlayer");
         if (mCallback != null) {
             mCallback.onCompletion();
@@ -358,12 +485,24 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
 
     @Override
     public void onPrepared(MediaPlayer player) {
+        if (player == mNextMediaPlayer) {
+            LogHelper.d(TAG, "onPrepared from next MediaPlayer");
+            mNextMediaPlayerPrepared = true;
+            chainNextMediaPlayer();
+            return;
+        }
         LogHelper.d(TAG, "onPrepared from MediaPlayer");
         configMediaPlayerState();
     }
 
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
+        if (mp == mNextMediaPlayer) {
+            // The next item will simply be prepared again when it is played
+            LogHelper.w(TAG, "Next media player error: what=" + what + ", extra=" + extra);
+            releaseNextMediaPlayer();
+            return true;
+        }
         LogHelper.e(TAG, "Media player error: what=" + what + ", extra=" + extra);
         if (mCallback != null) {
             mCallback.onError("MediaPlayer error " + what + " (" + extra + ")");
@@ -379,23 +518,144 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     private void createMediaPlayerIfNeeded() {
         LogHelper.d(TAG, "createMediaPlayerIfNeeded. needed? ", (mMediaPlayer==null));
         if (mMediaPlayer == null) {
-            mMediaPlayer = new MediaPlayer();
-
-            // Make sure the media player will acquire a wake-lock while
-            // playing. If we don't do that, the CPU might go to sleep while the
-            // song is playing, causing playback to stop.
-            mMediaPlayer.setWakeMode(mService.getApplicationContext(),
-                    PowerManager.PARTIAL_WAKE_LOCK);
-
-            mMediaPlayer.setOnPreparedListener(this);
-            mMediaPlayer.setOnCompletionListener(this);
-            mMediaPlayer.setOnErrorListener(this);
-            mMediaPlayer.setOnSeekCompleteListener(this);
+            mMediaPlayer = createMediaPlayer();
         } else {
             mMediaPlayer.reset();
         }
     }
 
+    private void startStreamProxy() {
+        try {
+            mStreamProxy.start();
+        } catch (IOException ex) {
+            // Previews will be streamed directly from the network instead
+            LogHelper.e(TAG, ex, "Unable to start stream proxy");
+        }
+    }
+
+    /**
+     * Points the player at the preview downloaded for offline listening or the cached one
+     * when there is one, and at the stream proxy otherwise, which caches the preview while
+     * serving it.
+     *
+     * @return whether the player was given a local file
+     */
+    private boolean setDataSource(MediaPlayer player, String mediaId, String source) throws IOException {
+        File local = mOfflineLibrary.getFile(mediaId);
+        if (local == null) {
+            local = mAudioCache.get(mediaId);
+        }
+        if (local != null) {
+            LogHelper.d(TAG, "Playing local preview for mediaId=", mediaId);
+            // The media server can't open files in our private directory, so pass
+            // it a descriptor instead. It is safe to close it once this returns.
+            FileInputStream in = new FileInputStream(local);
+            try {
+                player.setDataSource(in.getFD());
+            } finally {
+                in.close();
+            }
+            return true;
+        }
+        player.setDataSource(mStreamProxy.getUrl(mediaId, source));
+        return false;
+    }
+
+    private MediaPlayer createMediaPlayer() {
+        MediaPlayer mediaPlayer = new MediaPlayer();
+
+        // Make sure the media player will acquire a wake-lock while
+        // playing. If we don't do that, the CPU might go to sleep while the
+        // song is playing, causing playback to stop.
+        mediaPlayer.setWakeMode(mService.getApplicationContext(),
+                PowerManager.PARTIAL_WAKE_LOCK);
+
+        mediaPlayer.setOnPreparedListener(this);
+        mediaPlayer.setOnCompletionListener(this);
+        mediaPlayer.setOnErrorListener(this);
+        mediaPlayer.setOnSeekCompleteListener(this);
+        return mediaPlayer;
+    }
+
+    /**
+     * Hands the prepared next player to the current one, so that the platform starts
+     * it as soon as the current track completes (available since Jelly Bean). On older
+     * versions the next player is started by {@link #swapToNextMediaPlayer} instead.
+     */
+    private void chainNextMediaPlayer() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || mMediaPlayer == null
+                || !mNextMediaPlayerPrepared || !mNextMediaPlayerChainable || mNextMediaPlayerChained) {
+            return;
+        }
+        if (mState != PlaybackStateCompat.STATE_PLAYING && mState != PlaybackStateCompat.STATE_PAUSED) {
+            return;
+        }
+        try {
+            mMediaPlayer.setNextMediaPlayer(mNextMediaPlayer);
+            mNextMediaPlayerChained = true;
+        } catch (IllegalStateException ex) {
+            LogHelper.w(TAG, ex, "Unable to chain next media player");
+        }
+    }
+
+    /**
+     * Makes the next player the current one. If it was chained, it is already playing;
+     * otherwise it is started here, or as soon as it finishes preparing.
+     */
+    private void swapToNextMediaPlayer() {
+        LogHelper.d(TAG, "swapToNextMediaPlayer. prepared=", mNextMediaPlayerPrepared,
+                " chained=", mNextMediaPlayerChained);
+        MediaPlayer previous = mMediaPlayer;
+        boolean prepared = mNextMediaPlayerPrepared;
+        mMediaPlayer = mNextMediaPlayer;
+        mNextMediaPlayer = null;
+        mNextMediaId = null;
+        mNextMediaPlayerPrepared = false;
+        mNextMediaPlayerChained = false;
+        mNextMediaPlayerChainable = false;
+
+        if (previous != null) {
+            previous.reset();
+            previous.release();
+        }
+        if (!mWifiLock.isHeld()) {
+            mWifiLock.acquire();
+        }
+
+        if (prepared) {
+            mState = mMediaPlayer.isPlaying() ?
+                    PlaybackStateCompat.STATE_PLAYING : PlaybackStateCompat.STATE_BUFFERING;
+            configMediaPlayerState();
+        } else {
+            // onPrepared will start playback once the player is ready
+            mState = PlaybackStateCompat.STATE_BUFFERING;
+            if (mCallback != null) {
+                mCallback.onPlaybackStatusChanged(mState);
+            }
+        }
+    }
+
+    private void releaseNextMediaPlayer() {
+        if (mNextMediaPlayer == null) {
+            return;
+        }
+        LogHelper.d(TAG, "releaseNextMediaPlayer. mediaId=", mNextMediaId);
+        if (mNextMediaPlayerChained && mMediaPlayer != null) {
+            try {
+                mMediaPlayer.setNextMediaPlayer(null);
+            } catch (IllegalStateException ex) {
+                // ignore, the current player is being torn down as well
+            }
+        }
+        mNextMediaPlayer.reset();
+        mNextMediaPlayer.release();
+        mNextMediaPlayer = null;
+        mNextMediaId = null;
+        mNextMediaPlayerPrepared = false;
+        mNextMediaPlayerChained = false;
+        mNextMediaPlayerChainable = false;
+    }
+
     /**
      * Releases resources used by the service for playback. This includes the
      * "foreground service" status, the wake locks and possibly the MediaPlayer.
@@ -408,6 +668,9 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         mService.stopForeground(true);
 
         // stop and release the Media Player, if it's available
+        if (releaseMediaPlayer) {
+            releaseNextMediaPlayer();
+        }
         if (releaseMediaPlayer && mMediaPlayer != null) {
             mMediaPlayer.reset();
             mMediaPlayer.release();
@@ -422,7 +685,7 @@ public class MediaPlayback implements Playback, AudioManager.OnAudioFocusChangeL
 
     private void registerAudioNoisyReceiver() {
         if (!mAudioNoisyReceiverRegistered) {
-            mService.registerReceiver(mAudioNoisyReceiver, mAudioNoisyIntentFilter);
+            mService.registerReceiver(mAudioNoisyReceiver, mAudioNoisyIntentFilter, null, mHandler);
             mAudioNoisyReceiverRegistered = true;
         }
     }
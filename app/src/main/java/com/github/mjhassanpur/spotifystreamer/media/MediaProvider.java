@@ -17,19 +17,22 @@
 package com.github.mjhassanpur.spotifystreamer.media;
 
 import android.support.v4.media.MediaMetadataCompat;
+import android.text.TextUtils;
 
+import com.github.mjhassanpur.spotifystreamer.model.TrackItem;
 import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
 import java.util.Map;
-
-import kaaes.spotify.webapi.android.models.Track;
+import java.util.Set;
 
 /**
- * Utility class to get a list of media items (music tracks).
+ * Utility class to look up the media items (music tracks) in the queue by media ID.
+ * Metadata is built on first use, so adding thousands of tracks stays cheap, and is kept
+ * by media ID for as long as the track is, so that replacing the queue with one that shares
+ * tracks doesn't build theirs again.
  *
  * @see <a href="https://github.com/googlesamples/android-UniversalMusicPlayer/blob/master/mobile/src/main/java/com/example/android/uamp/model/MusicProvider.java"></a>
  */
@@ -38,20 +41,16 @@ public class MediaProvider {
     private static final String TAG = LogHelper.makeLogTag(MediaProvider.class);
 
     public static final String CUSTOM_METADATA_TRACK_SOURCE = "__SOURCE__";
+    // All sizes of the album art, encoded by ImageVariants
+    public static final String CUSTOM_METADATA_ALBUM_ART_VARIANTS = "__ALBUM_ART_VARIANTS__";
+    public static final String CUSTOM_METADATA_ALBUM_ID = "__ALBUM_ID__";
 
-    private Map<String, MediaMetadataCompat> mMusicListById;
-    private final Map<Integer, String> mMusicListOrder;
-    private List<Track> mMusicList;
-
-    enum State {
-        NON_INITIALIZED, INITIALIZED
-    }
-
-    private volatile State mCurrentState = State.NON_INITIALIZED;
+    private final Map<String, TrackItem> mTracksById;
+    private final Map<String, MediaMetadataCompat> mMusicListById;
 
     public MediaProvider() {
+        mTracksById = new HashMap<>();
         mMusicListById = new HashMap<>();
-        mMusicListOrder = new HashMap<>();
     }
 
     /**
@@ -60,60 +59,80 @@ public class MediaProvider {
      * @param mediaId The unique media ID.
      */
     public MediaMetadataCompat getMusic(String mediaId) {
-        return mMusicListById.containsKey(mediaId) ? mMusicListById.get(mediaId) : null;
-    }
-
-    public Iterable<MediaMetadataCompat> getMusicList() {
-        if (mCurrentState != State.INITIALIZED) {
-            return Collections.emptyList();
+        MediaMetadataCompat metadata = mMusicListById.get(mediaId);
+        if (metadata == null) {
+            TrackItem track = mTracksById.get(mediaId);
+            if (track == null) {
+                return null;
+            }
+            metadata = build(track);
+            mMusicListById.put(mediaId, metadata);
         }
-        return getSortedMusicList();
+        return metadata;
     }
 
-    private ArrayList<MediaMetadataCompat> getSortedMusicList() {
-        ArrayList<MediaMetadataCompat> sortedMusicList = new ArrayList<>();
-        for (int i = 0, n = mMusicList.size(); i < n; i++) {
-            String mediaId = mMusicListOrder.get(i);
-            sortedMusicList.add(mMusicListById.get(mediaId));
-        }
-        return sortedMusicList;
+    public TrackItem getTrack(String mediaId) {
+        return mTracksById.get(mediaId);
     }
 
-    public void setMusicList(List<Track> tracks) {
-        if (tracks != null) {
-            if (isEqual(tracks, mMusicList))
-                return;
-            mMusicList = tracks;
-            mMusicListById.clear();
-            mMusicListOrder.clear();
-            for (int i = 0, n = tracks.size(); i < n; i++) {
-                MediaMetadataCompat item = build(tracks.get(i));
-                String mediaId = item.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
-                mMusicListById.put(mediaId, item);
-                mMusicListOrder.put(i, mediaId);
+    public void addTracks(Iterable<TrackItem> tracks) {
+        for (TrackItem track : tracks) {
+            TrackItem previous = mTracksById.put(track.id, track);
+            if (previous != null && !hasSameMetadata(previous, track)) {
+                // Metadata built from the previous copy may be out of date
+                mMusicListById.remove(track.id);
             }
-            mCurrentState = State.INITIALIZED;
         }
     }
 
-    public boolean isEqual(List<Track> arg0, List<Track> arg1) {
-        if (arg0 != null && !arg0.isEmpty() && arg1 != null && !arg1.isEmpty()) {
-            if (arg0.get(0).id.equals(arg1.get(0).id))
-                return true;
-        }
-        return false;
+    public void removeTrack(String mediaId) {
+        mTracksById.remove(mediaId);
+        mMusicListById.remove(mediaId);
+    }
+
+    /**
+     * @return the ID of the track's album, or for a track saved before album IDs were kept,
+     * the URL of its largest art, which is just as unique to the album
+     */
+    public static String getAlbumId(MediaMetadataCompat metadata) {
+        String albumId = metadata.getString(CUSTOM_METADATA_ALBUM_ID);
+        return albumId != null ? albumId : metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI);
+    }
+
+    /**
+     * Drops every track, and its metadata, other than the given ones.
+     */
+    public void retainTracks(Collection<String> mediaIds) {
+        Set<String> retained = new HashSet<>(mediaIds);
+        mTracksById.keySet().retainAll(retained);
+        mMusicListById.keySet().retainAll(retained);
+    }
+
+    /**
+     * @return whether {@link #build} makes the same metadata of both tracks
+     */
+    private static boolean hasSameMetadata(TrackItem a, TrackItem b) {
+        return a == b || (TextUtils.equals(a.previewUrl, b.previewUrl)
+                && TextUtils.equals(a.name, b.name)
+                && TextUtils.equals(a.albumId, b.albumId)
+                && TextUtils.equals(a.albumName, b.albumName)
+                && TextUtils.equals(a.albumArtUrl, b.albumArtUrl)
+                && TextUtils.equals(a.albumArt.encode(), b.albumArt.encode())
+                && TextUtils.equals(a.artistName, b.artistName));
     }
 
-    private MediaMetadataCompat build(Track track) {
+    private MediaMetadataCompat build(TrackItem track) {
         LogHelper.d(TAG, "Found music track: ", track.name);
         // TODO: Move the track source out of MediaMetadataCompat
         return new MediaMetadataCompat.Builder()
                 .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, track.id)
-                .putString(CUSTOM_METADATA_TRACK_SOURCE, track.preview_url)
-                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, track.album.name)
-                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, track.artists.get(0).name)
+                .putString(CUSTOM_METADATA_TRACK_SOURCE, track.previewUrl)
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, track.albumName)
+                .putString(CUSTOM_METADATA_ALBUM_ID, track.albumId)
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, track.artistName)
                 .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, 30000) // track previews are only 30 secs
-                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, track.album.images.get(0).url)
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, track.albumArtUrl)
+                .putString(CUSTOM_METADATA_ALBUM_ART_VARIANTS, track.albumArt.encode())
                 .putString(MediaMetadataCompat.METADATA_KEY_TITLE, track.name)
                 .build();
     }
@@ -0,0 +1,443 @@
+package com.github.mjhassanpur.spotifystreamer.media;
+
+import android.content.Context;
+
+import com.github.mjhassanpur.spotifystreamer.DownloadService;
+import com.github.mjhassanpur.spotifystreamer.model.TrackItem;
+import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The tracks made available offline: their previews and album art, kept in the files
+ * directory so that they are never evicted like the caches, and the download job of each.
+ * Jobs are persisted, so that downloads interrupted by the process being killed resume
+ * where they stopped.
+ *
+ * The checksum of every downloaded preview is recorded, and checked again when the
+ * library is loaded, so that a corrupted file is downloaded again rather than played.
+ *
+ * Safe to use from any thread.
+ */
+public class OfflineLibrary {
+
+    private static final String TAG = LogHelper.makeLogTag(OfflineLibrary.class);
+
+    private static final String DIRECTORY = "offline";
+    private static final String ART_DIRECTORY = "art";
+    private static final String JOBS_FILE_NAME = "offline_jobs";
+    private static final String PARTIAL_SUFFIX = ".part";
+    // Version 2 stores tracks with their album ID
+    private static final int FORMAT_VERSION = 2;
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_DONE = 1;
+    private static final int STATE_FAILED = 2;
+
+    private static OfflineLibrary sInstance;
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final File mArtDirectory;
+    private final File mJobsFile;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // Guarded by this; in the order the tracks were added
+    private final LinkedHashMap<String, Job> mJobs = new LinkedHashMap<>();
+    // Guarded by this; every variant URL of the downloaded album art to the file holding it
+    private final Map<String, File> mArt = new HashMap<>();
+
+    private final Runnable mSaveTask = new Runnable() {
+        @Override
+        public void run() {
+            List<Job> jobs;
+            synchronized (OfflineLibrary.this) {
+                jobs = new ArrayList<>(mJobs.size());
+                for (Job job : mJobs.values()) {
+                    jobs.add(new Job(job));
+                }
+            }
+            write(jobs);
+        }
+    };
+
+    private static class Job {
+        final TrackItem mTrack;
+        int mState;
+        // Of the downloaded preview once done
+        String mChecksum;
+        // Of the response the partial file was started from, to resume it only if unchanged
+        String mEtag;
+
+        Job(TrackItem track) {
+            mTrack = track;
+            mState = STATE_PENDING;
+        }
+
+        Job(Job job) {
+            mTrack = job.mTrack;
+            mState = job.mState;
+            mChecksum = job.mChecksum;
+            mEtag = job.mEtag;
+        }
+    }
+
+    public static synchronized OfflineLibrary getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new OfflineLibrary(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private OfflineLibrary(Context context) {
+        mContext = context;
+        mDirectory = new File(context.getFilesDir(), DIRECTORY);
+        mArtDirectory = new File(mDirectory, ART_DIRECTORY);
+        mJobsFile = new File(context.getFilesDir(), JOBS_FILE_NAME);
+        if (!mArtDirectory.exists() && !mArtDirectory.mkdirs()) {
+            LogHelper.e(TAG, "Unable to create the offline directory ", mArtDirectory);
+        }
+        // The job file is small, and playback needs to know what is offline from the start
+        for (Job job : read()) {
+            mJobs.put(job.mTrack.id, job);
+            if (job.mTrack.albumArtUrl != null) {
+                File art = getArtFile(job.mTrack.albumArtUrl);
+                if (art.exists()) {
+                    indexArt(job.mTrack, art);
+                }
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                verify();
+            }
+        });
+    }
+
+    /**
+     * Adds download jobs for the tracks that aren't in the library yet, and retries those
+     * whose download had failed.
+     *
+     * @return whether any job was added or retried
+     */
+    public synchronized boolean add(List<TrackItem> tracks) {
+        boolean changed = false;
+        for (TrackItem track : tracks) {
+            Job job = mJobs.get(track.id);
+            if (job == null) {
+                mJobs.put(track.id, new Job(track));
+                changed = true;
+            } else if (job.mState == STATE_FAILED) {
+                job.mState = STATE_PENDING;
+                changed = true;
+            }
+        }
+        if (changed) {
+            save();
+        }
+        return changed;
+    }
+
+    /**
+     * @return the tracks whose download hasn't finished, in the order they were added
+     */
+    public synchronized List<TrackItem> getPendingTracks() {
+        List<TrackItem> tracks = new ArrayList<>();
+        for (Job job : mJobs.values()) {
+            if (job.mState == STATE_PENDING) {
+                tracks.add(job.mTrack);
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * @return the downloaded preview of the track, or null if it isn't available offline
+     */
+    public synchronized File getFile(String mediaId) {
+        Job job = mJobs.get(mediaId);
+        if (job == null || job.mState != STATE_DONE) {
+            return null;
+        }
+        File file = new File(mDirectory, mediaId);
+        if (!file.exists()) {
+            LogHelper.w(TAG, "Offline file of ", mediaId, " is missing");
+            job.mState = STATE_PENDING;
+            save();
+            DownloadService.resume(mContext);
+            return null;
+        }
+        return file;
+    }
+
+    public boolean isAvailable(String mediaId) {
+        return getFile(mediaId) != null;
+    }
+
+    /**
+     * @return the downloaded album art for any variant URL of it, or null if there is none
+     */
+    public synchronized File getAlbumArtFile(String url) {
+        return url != null ? mArt.get(url) : null;
+    }
+
+    /**
+     * @return the file a download of the track's preview goes to until it is complete,
+     * possibly holding the start of an earlier attempt
+     */
+    public File getPartialFile(String mediaId) {
+        return new File(mDirectory, mediaId + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * @return the file a download of the track's album art goes to until it is complete.
+     * Named after the track, as other tracks of the album may be downloading the same art.
+     */
+    public File getPartialAlbumArtFile(TrackItem track) {
+        return new File(mArtDirectory, track.id + PARTIAL_SUFFIX);
+    }
+
+    public synchronized String getEtag(String mediaId) {
+        Job job = mJobs.get(mediaId);
+        return job != null ? job.mEtag : null;
+    }
+
+    /**
+     * Records the entity tag of the response the partial file was started from.
+     */
+    public synchronized void setEtag(String mediaId, String etag) {
+        Job job = mJobs.get(mediaId);
+        if (job != null) {
+            job.mEtag = etag;
+            save();
+        }
+    }
+
+    /**
+     * Moves the complete download of the track's preview into the library.
+     */
+    public synchronized void complete(String mediaId, File partial, String checksum) throws IOException {
+        Job job = mJobs.get(mediaId);
+        if (job == null) {
+            partial.delete();
+            return;
+        }
+        if (!partial.renameTo(new File(mDirectory, mediaId))) {
+            throw new IOException("Unable to move " + partial);
+        }
+        job.mState = STATE_DONE;
+        job.mChecksum = checksum;
+        job.mEtag = null;
+        save();
+    }
+
+    /**
+     * Moves the complete download of the track's album art into the library.
+     */
+    public synchronized void completeAlbumArt(TrackItem track, File partial) throws IOException {
+        File file = getArtFile(track.albumArtUrl);
+        if (!partial.renameTo(file)) {
+            throw new IOException("Unable to move " + partial);
+        }
+        indexArt(track, file);
+    }
+
+    /**
+     * Gives up on the track's download until it is added again.
+     */
+    public synchronized void fail(String mediaId) {
+        Job job = mJobs.get(mediaId);
+        if (job != null && job.mState == STATE_PENDING) {
+            job.mState = STATE_FAILED;
+            getPartialFile(mediaId).delete();
+            save();
+        }
+    }
+
+    /**
+     * @return the hex encoded MD5 of the file's content
+     */
+    public static String checksum(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            closeQuietly(in);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Must hold this.
+     */
+    private void indexArt(TrackItem track, File file) {
+        for (String url : track.albumArt.getUrls()) {
+            mArt.put(url, file);
+        }
+    }
+
+    private File getArtFile(String url) {
+        String name;
+        try {
+            name = toHex(MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException | IOException e) {
+            name = Integer.toHexString(url.hashCode());
+        }
+        return new File(mArtDirectory, name);
+    }
+
+    /**
+     * Checks the downloaded previews against their recorded checksums, and queues those
+     * that don't match to be downloaded again. Called on the executor.
+     */
+    private void verify() {
+        List<Job> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<>(mJobs.values());
+        }
+        int corrupted = 0;
+        for (Job job : jobs) {
+            String expected;
+            synchronized (this) {
+                if (job.mState != STATE_DONE) {
+                    continue;
+                }
+                expected = job.mChecksum;
+            }
+            File file = new File(mDirectory, job.mTrack.id);
+            String checksum = null;
+            try {
+                checksum = checksum(file);
+            } catch (IOException e) {
+                LogHelper.w(TAG, e, "Unable to read ", file);
+            }
+            if (checksum == null || !checksum.equals(expected)) {
+                file.delete();
+                synchronized (this) {
+                    job.mState = STATE_PENDING;
+                }
+                corrupted++;
+            }
+        }
+        if (corrupted > 0) {
+            LogHelper.w(TAG, corrupted, " offline files failed verification");
+            mSaveTask.run();
+            // The service may have read the pending jobs before these were added
+            DownloadService.resume(mContext);
+        }
+    }
+
+    private void save() {
+        mExecutor.execute(mSaveTask);
+    }
+
+    private List<Job> read() {
+        List<Job> jobs = new ArrayList<>();
+        if (!mJobsFile.exists()) {
+            return jobs;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJobsFile)));
+            int version = in.readInt();
+            if (version != 1 && version != FORMAT_VERSION) {
+                return jobs;
+            }
+            // The tracks are in the format of the queue version current at the time
+            int trackVersion = version == 1 ? 2 : 3;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Job job = new Job(QueueStore.readTrack(in, trackVersion));
+                job.mState = in.readInt();
+                job.mChecksum = in.readBoolean() ? in.readUTF() : null;
+                job.mEtag = in.readBoolean() ? in.readUTF() : null;
+                jobs.add(job);
+            }
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Unable to read the offline jobs");
+        } finally {
+            closeQuietly(in);
+        }
+        return jobs;
+    }
+
+    private void write(List<Job> jobs) {
+        File temp = new File(mJobsFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(jobs.size());
+            for (Job job : jobs) {
+                QueueStore.writeTrack(out, job.mTrack);
+                out.writeInt(job.mState);
+                out.writeBoolean(job.mChecksum != null);
+                if (job.mChecksum != null) {
+                    out.writeUTF(job.mChecksum);
+                }
+                out.writeBoolean(job.mEtag != null);
+                if (job.mEtag != null) {
+                    out.writeUTF(job.mEtag);
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mJobsFile)) {
+                LogHelper.w(TAG, "Unable to replace the offline jobs");
+                temp.delete();
+            }
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Unable to save the offline jobs");
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
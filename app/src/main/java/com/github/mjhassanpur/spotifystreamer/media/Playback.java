@@ -40,6 +40,12 @@ public interface Playback {
      */
     void stop(boolean notifyListeners);
 
+    /**
+     * Silence the current item and drop any prepared one, keeping the resources that a
+     * following call to {@link #play} needs, such as audio focus.
+     */
+    void silence();
+
     /**
      * Set the latest playback state as determined by the caller.
      */
@@ -66,11 +72,44 @@ public interface Playback {
      */
     int getCurrentStreamPosition();
 
+    /**
+     * Set the current position. Typically used when restoring the playback
+     * of an item that a previous process was playing.
+     * @param pos position in the stream
+     */
+    void setCurrentStreamPosition(int pos);
+
+    /**
+     * Set the current mediaId, so that a following call to {@link #play} for it
+     * starts from the current stream position rather than from the beginning.
+     * @param mediaId to be set as the current.
+     */
+    void setCurrentMediaId(String mediaId);
+
+    /**
+     * @return the current media Id being processed in any state or null.
+     */
+    String getCurrentMediaId();
+
     /**
      * @param item to play
      */
     void play(QueueItem item);
 
+    /**
+     * Prepare the given item in the background while the current one is playing,
+     * so that a following call to {@link #play} for it can start without buffering.
+     * @param item to prepare next, or null to discard any previously prepared item
+     */
+    void prepareNext(QueueItem item);
+
+    /**
+     * Like {@link #prepareNext}, for an item the user is about to play, but the item is
+     * never played automatically when the current one completes.
+     * @param item to prepare, or null to discard any previously prepared item
+     */
+    void preload(QueueItem item);
+
     /**
      * Pause the current playing track
      */
@@ -0,0 +1,324 @@
+package com.github.mjhassanpur.spotifystreamer.media;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.media.session.MediaSessionCompat.QueueItem;
+
+import com.github.mjhassanpur.spotifystreamer.model.ImageVariants;
+import com.github.mjhassanpur.spotifystreamer.model.TrackItem;
+import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persists the play queue to a compact binary file, so that it survives the service
+ * being killed. Changes are batched: a burst of edits results in a single write,
+ * done off the main thread.
+ *
+ * The position in the queue is kept in a separate, tiny file, so that saving it on
+ * every pause doesn't rewrite the whole queue.
+ */
+public class QueueStore {
+
+    private static final String TAG = LogHelper.makeLogTag(QueueStore.class);
+
+    private static final String FILE_NAME = "queue";
+    private static final String POSITION_FILE_NAME = "queue_position";
+    // Version 2 stores all album art variants where version 1 stored a single URL, and
+    // version 3 adds the album ID of each track
+    private static final int FORMAT_VERSION = 3;
+    private static final int POSITION_FORMAT_VERSION = 1;
+    // Edits made within this long of each other are written together
+    private static final long WRITE_DELAY = 1000;
+
+    private final File mFile;
+    private final File mPositionFile;
+    private final Source mSource;
+    private final Handler mHandler;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private boolean mSavePending;
+
+    private final Runnable mSaveTask = new Runnable() {
+        @Override
+        public void run() {
+            mSavePending = false;
+            final State state = mSource.getQueueState();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(state);
+                }
+            });
+        }
+    };
+
+    /**
+     * Supplies the state to write. Called on the thread of the looper given to the store.
+     */
+    public interface Source {
+        State getQueueState();
+    }
+
+    public static class State {
+        public final long nextQueueId;
+        public final long snapshotVersion;
+        public final long[] queueIds;
+        public final TrackItem[] tracks;
+
+        public State(long nextQueueId, long snapshotVersion, long[] queueIds, TrackItem[] tracks) {
+            this.nextQueueId = nextQueueId;
+            this.snapshotVersion = snapshotVersion;
+            this.queueIds = queueIds;
+            this.tracks = tracks;
+        }
+    }
+
+    /**
+     * The item that was current and how far it had played.
+     */
+    public static class Position {
+        public final long queueId;
+        public final int streamPosition;
+
+        public Position(long queueId, int streamPosition) {
+            this.queueId = queueId;
+            this.streamPosition = streamPosition;
+        }
+    }
+
+    /**
+     * @param looper the looper of the thread that owns the queue, on which the source is
+     *               asked for its state and from which the store must be used
+     */
+    public QueueStore(Context context, Looper looper, Source source) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        mPositionFile = new File(context.getFilesDir(), POSITION_FILE_NAME);
+        mHandler = new Handler(looper);
+        mSource = source;
+    }
+
+    /**
+     * Schedules a write of the current state, replacing any write that hasn't started yet.
+     */
+    public void requestSave() {
+        mHandler.removeCallbacks(mSaveTask);
+        mHandler.postDelayed(mSaveTask, WRITE_DELAY);
+        mSavePending = true;
+    }
+
+    /**
+     * Starts writing the current state right away if a write is pending.
+     */
+    public void flush() {
+        if (mSavePending) {
+            mHandler.removeCallbacks(mSaveTask);
+            mSaveTask.run();
+        }
+    }
+
+    /**
+     * Saves the current item and stream position in the background, after any pending
+     * write of the queue so that the position never refers to an item it doesn't have.
+     */
+    public void savePosition(final Position position) {
+        flush();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writePosition(position);
+            }
+        });
+    }
+
+    /**
+     * @return the position saved by a previous process, or null if there is none
+     */
+    public Position loadPosition() {
+        if (!mPositionFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mPositionFile));
+            if (in.readInt() != POSITION_FORMAT_VERSION) {
+                return null;
+            }
+            return new Position(in.readLong(), in.readInt());
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Unable to read the saved queue position");
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void writePosition(Position position) {
+        File temp = new File(mPositionFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeInt(POSITION_FORMAT_VERSION);
+            out.writeLong(position.queueId);
+            out.writeInt(position.streamPosition);
+            out.close();
+            out = null;
+            if (!temp.renameTo(mPositionFile)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Unable to save the queue position");
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Reads the state written by a previous process.
+     *
+     * @return the state, or null if there is none or it couldn't be read
+     */
+    public State load() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            int version = in.readInt();
+            if (version < 1 || version > FORMAT_VERSION) {
+                return null;
+            }
+            long nextQueueId = in.readLong();
+            long snapshotVersion = in.readLong();
+            int count = in.readInt();
+            long[] queueIds = new long[count];
+            TrackItem[] tracks = new TrackItem[count];
+            for (int i = 0; i < count; i++) {
+                queueIds[i] = in.readLong();
+                tracks[i] = readTrack(in, version);
+            }
+            return new State(nextQueueId, snapshotVersion, queueIds, tracks);
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Unable to read the saved queue");
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void write(State state) {
+        long start = System.currentTimeMillis();
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(state.nextQueueId);
+            out.writeLong(state.snapshotVersion);
+            out.writeInt(state.tracks.length);
+            for (int i = 0; i < state.tracks.length; i++) {
+                out.writeLong(state.queueIds[i]);
+                writeTrack(out, state.tracks[i]);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                LogHelper.w(TAG, "Unable to replace the saved queue");
+                temp.delete();
+            }
+            LogHelper.d(TAG, "Saved ", state.tracks.length, " queue items in ",
+                    System.currentTimeMillis() - start, "ms");
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Unable to save the queue");
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Builds the state to save from the queue and the tracks it refers to.
+     */
+    public static State createState(long nextQueueId, long snapshotVersion, List<QueueItem> queue,
+                                    MediaProvider provider) {
+        long[] queueIds = new long[queue.size()];
+        List<TrackItem> tracks = new ArrayList<>(queue.size());
+        int count = 0;
+        for (QueueItem item : queue) {
+            TrackItem track = provider.getTrack(item.getDescription().getMediaId());
+            if (track != null) {
+                queueIds[count++] = item.getQueueId();
+                tracks.add(track);
+            }
+        }
+        long[] ids = new long[count];
+        System.arraycopy(queueIds, 0, ids, 0, count);
+        return new State(nextQueueId, snapshotVersion, ids, tracks.toArray(new TrackItem[count]));
+    }
+
+    /**
+     * Writes the fields of a track, for {@link #readTrack} to read back. Shared with the
+     * other stores of tracks.
+     */
+    static void writeTrack(DataOutputStream out, TrackItem track) throws IOException {
+        writeString(out, track.id);
+        writeString(out, track.name);
+        writeString(out, track.albumId);
+        writeString(out, track.albumName);
+        writeString(out, track.albumArt.encode());
+        writeString(out, track.previewUrl);
+        writeString(out, track.artistName);
+        writeString(out, track.externalUrl);
+    }
+
+    /**
+     * @param version the version of the queue format the track was written in, which
+     *                {@link #writeTrack} always writes the latest of
+     */
+    static TrackItem readTrack(DataInputStream in, int version) throws IOException {
+        String id = readString(in);
+        String name = readString(in);
+        String albumId = version >= 3 ? readString(in) : null;
+        String albumName = readString(in);
+        String albumArt = readString(in);
+        return new TrackItem(id, name, albumId, albumName,
+                version == 1 ? ImageVariants.fromUrl(albumArt) : ImageVariants.decode(albumArt),
+                readString(in), readString(in), readString(in));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
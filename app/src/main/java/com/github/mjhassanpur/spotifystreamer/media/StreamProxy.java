@@ -0,0 +1,539 @@
+package com.github.mjhassanpur.spotifystreamer.media;
+
+import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A small HTTP server on the loopback interface that {@link android.media.MediaPlayer}
+ * streams previews from. Each preview is fetched from upstream once and written into the
+ * {@link AudioCache}, while byte ranges of it are served to any number of readers as the
+ * download progresses. Downloads that are interrupted are resumed from where they stopped.
+ *
+ * Any app on the device can connect to the loopback interface, so the proxy only serves
+ * previews registered through {@link #getUrl}, each under a random token. Neither the
+ * media ID, which names files in the cache, nor the upstream url is taken from a request.
+ */
+public class StreamProxy implements Runnable {
+
+    private static final String TAG = LogHelper.makeLogTag(StreamProxy.class);
+
+    private static final String HOST = "127.0.0.1";
+    private static final String CONTENT_TYPE = "audio/mpeg";
+    private static final int BUFFER_SIZE = 8192;
+    private static final int REQUEST_TIMEOUT = 5000;
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+    // The Content-Range of a 416 response, giving the length of the whole file
+    private static final Pattern UNSATISFIED_RANGE_PATTERN = Pattern.compile("bytes \\*/(\\d+)");
+    // Spotify IDs are base62; anything else could name a file outside the cache
+    private static final Pattern MEDIA_ID_PATTERN = Pattern.compile("[0-9A-Za-z]{22}");
+
+    private final AudioCache mCache;
+    private final OkHttpClient mClient;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    // Downloads in progress, shared by every reader of the same media ID
+    private final Map<String, Download> mDownloads = new HashMap<>();
+    // Guarded by this; the previews that may be served, by token and by media ID
+    private final Map<String, Route> mRoutesByToken = new HashMap<>();
+    private final Map<String, Route> mRoutesByMediaId = new HashMap<>();
+    private final SecureRandom mRandom = new SecureRandom();
+
+    private ServerSocket mServerSocket;
+    private Thread mThread;
+
+    public StreamProxy(AudioCache cache, OkHttpClient client) {
+        mCache = cache;
+        mClient = client;
+    }
+
+    /**
+     * Starts accepting connections, unless already started.
+     */
+    public synchronized void start() throws IOException {
+        if (mServerSocket != null) {
+            return;
+        }
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName(HOST));
+        mThread = new Thread(this, TAG);
+        mThread.start();
+        LogHelper.d(TAG, "Started on port ", mServerSocket.getLocalPort());
+    }
+
+    /**
+     * Stops accepting connections. Downloads in progress are completed so
+     * that they still end up in the cache.
+     */
+    public synchronized void stop() {
+        if (mServerSocket == null) {
+            return;
+        }
+        closeQuietly(mServerSocket);
+        mServerSocket = null;
+        mThread = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return mServerSocket != null;
+    }
+
+    /**
+     * Allows the proxy to serve the given preview.
+     *
+     * @return the url that serves the given media ID through the proxy, or the source
+     * url itself if the proxy isn't running or the media ID isn't a Spotify ID
+     */
+    public synchronized String getUrl(String mediaId, String source) {
+        if (mServerSocket == null || mediaId == null || !MEDIA_ID_PATTERN.matcher(mediaId).matches()) {
+            return source;
+        }
+        Route route = mRoutesByMediaId.get(mediaId);
+        if (route == null || !route.mUrl.equals(source)) {
+            if (route != null) {
+                mRoutesByToken.remove(route.mToken);
+            }
+            byte[] bytes = new byte[16];
+            mRandom.nextBytes(bytes);
+            StringBuilder token = new StringBuilder();
+            for (byte b : bytes) {
+                token.append(String.format("%02x", b));
+            }
+            route = new Route(token.toString(), mediaId, source);
+            mRoutesByToken.put(route.mToken, route);
+            mRoutesByMediaId.put(mediaId, route);
+        }
+        return "http://" + HOST + ":" + mServerSocket.getLocalPort() + "/" + route.mToken;
+    }
+
+    private synchronized Route getRoute(String token) {
+        return mRoutesByToken.get(token);
+    }
+
+    @Override
+    public void run() {
+        ServerSocket serverSocket;
+        synchronized (this) {
+            serverSocket = mServerSocket;
+        }
+        while (serverSocket != null && !serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LogHelper.w(TAG, e, "Error accepting connection");
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(REQUEST_TIMEOUT);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String requestLine = reader.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            long rangeStart = 0;
+            long rangeEnd = -1;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    Matcher matcher = RANGE_PATTERN.matcher(line.substring(colon + 1).trim());
+                    if (matcher.matches()) {
+                        rangeStart = Long.parseLong(matcher.group(1));
+                        if (!matcher.group(2).isEmpty()) {
+                            rangeEnd = Long.parseLong(matcher.group(2));
+                        }
+                    }
+                }
+            }
+
+            // GET /<token> HTTP/1.1
+            String[] parts = requestLine.split(" ");
+            Route route = parts.length > 1 && parts[1].startsWith("/") ? getRoute(parts[1].substring(1)) : null;
+            if (route == null) {
+                writeStatus(socket.getOutputStream(), "404 Not Found");
+                return;
+            }
+            LogHelper.d(TAG, "Serving ", route.mMediaId, " from ", rangeStart, " to ", rangeEnd);
+
+            Download download = getDownload(route.mMediaId, route.mUrl);
+            serve(socket.getOutputStream(), download, rangeStart, rangeEnd);
+        } catch (IOException e) {
+            // The player commonly drops the connection when it seeks or is reset
+            LogHelper.d(TAG, "Connection closed: ", e.getMessage());
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private void serve(OutputStream out, Download download, long start, long end) throws IOException {
+        if (end >= 0 && end < start) {
+            // A range ending before it starts selects nothing
+            writeStatus(out, "416 Requested Range Not Satisfiable");
+            return;
+        }
+        long length = download.awaitLength();
+        if (length < 0 && start > 0) {
+            // Ranges can't be described without the total length, so wait for all of it
+            length = download.awaitCompletion();
+        } else if (length < 0) {
+            // Serve the whole stream, without a length, rather than a 200 whose length only
+            // covers the range; the player would take that for the end of the preview
+            end = -1;
+        }
+        if (length >= 0 && start >= length) {
+            writeStatus(out, "416 Requested Range Not Satisfiable");
+            return;
+        }
+        if (length >= 0 && (end < 0 || end >= length)) {
+            end = length - 1;
+        }
+
+        StringBuilder headers = new StringBuilder();
+        if (start > 0 || (end >= 0 && end < length - 1)) {
+            headers.append("HTTP/1.1 206 Partial Content\r\n")
+                    .append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(length).append("\r\n");
+        } else {
+            headers.append("HTTP/1.1 200 OK\r\n");
+        }
+        if (end >= 0) {
+            headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+        }
+        headers.append("Content-Type: ").append(CONTENT_TYPE).append("\r\n")
+                .append("Accept-Ranges: bytes\r\n")
+                .append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+
+        RandomAccessFile file = download.open();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            while (end < 0 || position <= end) {
+                long available = download.awaitAvailable(position);
+                if (available <= position) {
+                    // Download finished before reaching this position
+                    break;
+                }
+                if (end >= 0) {
+                    available = Math.min(available, end + 1);
+                }
+                file.seek(position);
+                int count = file.read(buffer, 0, (int) Math.min(buffer.length, available - position));
+                if (count < 0) {
+                    break;
+                }
+                out.write(buffer, 0, count);
+                position += count;
+            }
+            out.flush();
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    private void writeStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    /**
+     * @return the download in progress for the given media ID, a completed one if it is
+     * already cached, or a newly started one otherwise
+     */
+    private Download getDownload(String mediaId, String url) {
+        synchronized (mDownloads) {
+            Download download = mDownloads.get(mediaId);
+            if (download != null) {
+                return download;
+            }
+            File cached = mCache.get(mediaId);
+            if (cached != null) {
+                return new Download(mediaId, cached);
+            }
+            download = new Download(mediaId, url, mCache.getPartialFile(mediaId));
+            mDownloads.put(mediaId, download);
+            mExecutor.execute(download);
+            return download;
+        }
+    }
+
+    private void finishDownload(Download download) {
+        synchronized (mDownloads) {
+            if (mDownloads.get(download.mMediaId) == download) {
+                mDownloads.remove(download.mMediaId);
+            }
+        }
+    }
+
+    /**
+     * A preview registered through {@link #getUrl}.
+     */
+    private static class Route {
+        final String mToken;
+        final String mMediaId;
+        final String mUrl;
+
+        Route(String token, String mediaId, String url) {
+            mToken = token;
+            mMediaId = mediaId;
+            mUrl = url;
+        }
+    }
+
+    /**
+     * Fetches a preview into a partial file and tracks how much of it is available
+     * to readers. Readers wait on the download's monitor for more bytes.
+     */
+    private class Download implements Runnable {
+
+        private final String mMediaId;
+        private final String mUrl;
+        private File mFile;
+        private long mLength = -1;
+        private long mWritten;
+        private boolean mLengthKnown;
+        private boolean mDone;
+        private boolean mFailed;
+
+        Download(String mediaId, String url, File partialFile) {
+            mMediaId = mediaId;
+            mUrl = url;
+            mFile = partialFile;
+        }
+
+        /**
+         * Creates a download that has already completed into the given file.
+         */
+        Download(String mediaId, File file) {
+            mMediaId = mediaId;
+            mUrl = null;
+            mFile = file;
+            mLength = file.length();
+            mWritten = mLength;
+            mLengthKnown = true;
+            mDone = true;
+        }
+
+        @Override
+        public void run() {
+            RandomAccessFile out = null;
+            InputStream in = null;
+            try {
+                long offset = mFile.exists() ? mFile.length() : 0;
+                Response response = mClient.newCall(newRequest(offset)).execute();
+                if (offset > 0 && response.code() == 416) {
+                    response.body().close();
+                    Matcher matcher = UNSATISFIED_RANGE_PATTERN.matcher(
+                            String.valueOf(response.header("Content-Range")));
+                    if (matcher.matches() && Long.parseLong(matcher.group(1)) == offset) {
+                        // Killed after the last byte was written but before the file was
+                        // cached, so there is nothing left to download
+                        response = null;
+                    } else {
+                        // The partial file doesn't match the one upstream, so start over
+                        LogHelper.d(TAG, "Discarding the partial download of ", mMediaId);
+                        mFile.delete();
+                        mCache.setPartialEtag(mMediaId, null);
+                        offset = 0;
+                        response = mClient.newCall(newRequest(offset)).execute();
+                    }
+                }
+                long length;
+                if (response == null) {
+                    length = offset;
+                } else if (offset > 0 && response.code() == 206) {
+                    LogHelper.d(TAG, "Resuming download of ", mMediaId, " at ", offset);
+                    Matcher matcher = CONTENT_RANGE_PATTERN.matcher(
+                            String.valueOf(response.header("Content-Range")));
+                    length = matcher.matches() ? Long.parseLong(matcher.group(3)) : -1;
+                } else if (response.isSuccessful()) {
+                    // The server ignored the range, or the file changed since the partial
+                    // one was written, so start over
+                    offset = 0;
+                    length = response.body().contentLength();
+                    // If-Range only takes a strong entity tag
+                    String etag = response.header("ETag");
+                    mCache.setPartialEtag(mMediaId, etag != null && !etag.startsWith("W/") ? etag : null);
+                } else {
+                    response.body().close();
+                    throw new IOException("Unexpected response code " + response.code());
+                }
+
+                out = new RandomAccessFile(mFile, "rw");
+                out.setLength(offset);
+                out.seek(offset);
+                synchronized (this) {
+                    mWritten = offset;
+                    mLength = length;
+                    mLengthKnown = true;
+                    notifyAll();
+                }
+
+                in = response != null ? response.body().byteStream() : null;
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while (in != null && (count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                    synchronized (this) {
+                        mWritten += count;
+                        notifyAll();
+                    }
+                }
+                closeQuietly(out);
+                out = null;
+
+                synchronized (this) {
+                    // Readers open the file under this lock, so they never miss the rename
+                    File cached = mCache.put(mMediaId, mFile);
+                    if (cached != null) {
+                        mFile = cached;
+                    }
+                    mLength = mWritten;
+                    mDone = true;
+                    notifyAll();
+                }
+                LogHelper.d(TAG, "Downloaded ", mMediaId, ", size=", mWritten);
+            } catch (IOException e) {
+                LogHelper.w(TAG, e, "Download of ", mMediaId, " interrupted");
+                synchronized (this) {
+                    mFailed = true;
+                    notifyAll();
+                }
+            } finally {
+                closeQuietly(in);
+                closeQuietly(out);
+                finishDownload(this);
+            }
+        }
+
+        /**
+         * @return a request for the preview from the given offset on, which upstream
+         * answers with the whole file instead if it changed since the partial file was written
+         */
+        private Request newRequest(long offset) {
+            Request.Builder builder = new Request.Builder().url(mUrl);
+            if (offset > 0) {
+                builder.header("Range", "bytes=" + offset + "-");
+                String etag = mCache.getPartialEtag(mMediaId);
+                if (etag != null) {
+                    builder.header("If-Range", etag);
+                }
+            }
+            return builder.build();
+        }
+
+        synchronized RandomAccessFile open() throws IOException {
+            return new RandomAccessFile(mFile, "r");
+        }
+
+        /**
+         * Blocks until the total length is known.
+         * @return the total length, or -1 if the upstream server didn't report it
+         */
+        synchronized long awaitLength() throws IOException {
+            while (!mLengthKnown && !mFailed) {
+                await();
+            }
+            if (!mLengthKnown) {
+                throw new IOException("Download of " + mMediaId + " failed");
+            }
+            return mLength;
+        }
+
+        /**
+         * Blocks until the byte at the given position has been written or the download ends.
+         * @return the number of bytes available to read
+         */
+        synchronized long awaitAvailable(long position) throws IOException {
+            while (mWritten <= position && !mDone && !mFailed) {
+                await();
+            }
+            if (mWritten <= position && mFailed) {
+                throw new IOException("Download of " + mMediaId + " failed");
+            }
+            return mWritten;
+        }
+
+        /**
+         * Blocks until the download ends.
+         * @return the total length
+         */
+        synchronized long awaitCompletion() throws IOException {
+            while (!mDone && !mFailed) {
+                await();
+            }
+            if (mFailed) {
+                throw new IOException("Download of " + mMediaId + " failed");
+            }
+            return mLength;
+        }
+
+        private void await() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    // Sockets only implement Closeable since KitKat
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
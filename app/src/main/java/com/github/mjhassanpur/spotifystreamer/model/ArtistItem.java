@@ -0,0 +1,74 @@
+package com.github.mjhassanpur.spotifystreamer.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import kaaes.spotify.webapi.android.models.Artist;
+
+/**
+ * A lean, parcelable copy of an {@link Artist} holding only the fields the app uses.
+ */
+public class ArtistItem implements Parcelable {
+
+    public final String id;
+    public final String name;
+    // The largest image, for when the size it is shown at isn't known
+    public final String imageUrl;
+    public final ImageVariants images;
+
+    public ArtistItem(String id, String name, ImageVariants images) {
+        this.id = id;
+        this.name = name;
+        this.images = images;
+        this.imageUrl = images.getLargestUrl();
+    }
+
+    public static ArtistItem fromArtist(Artist artist) {
+        return new ArtistItem(artist.id, artist.name, ImageVariants.fromImages(artist.images));
+    }
+
+    public static ArrayList<ArtistItem> fromArtists(List<Artist> artists) {
+        if (artists == null) {
+            return null;
+        }
+        ArrayList<ArtistItem> items = new ArrayList<>(artists.size());
+        for (Artist artist : artists) {
+            items.add(fromArtist(artist));
+        }
+        return items;
+    }
+
+    private ArtistItem(Parcel in) {
+        id = in.readString();
+        name = in.readString();
+        images = ImageVariants.decode(in.readString());
+        imageUrl = images.getLargestUrl();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(id);
+        dest.writeString(name);
+        dest.writeString(images.encode());
+    }
+
+    public static final Creator<ArtistItem> CREATOR = new Creator<ArtistItem>() {
+        @Override
+        public ArtistItem createFromParcel(Parcel in) {
+            return new ArtistItem(in);
+        }
+
+        @Override
+        public ArtistItem[] newArray(int size) {
+            return new ArtistItem[size];
+        }
+    };
+}
@@ -0,0 +1,149 @@
+package com.github.mjhassanpur.spotifystreamer.model;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import kaaes.spotify.webapi.android.models.Image;
+
+/**
+ * The sizes Spotify offers an image in, so that each view can load the smallest one that
+ * still fills it rather than always the largest (often 640px for a 50dp thumbnail).
+ *
+ * Immutable. Can be encoded as a string, e.g. to travel in media metadata.
+ */
+public class ImageVariants {
+
+    public static final ImageVariants EMPTY = new ImageVariants(new int[0], new String[0]);
+
+    // Ascending; the larger of width and height, or 0 if Spotify didn't say
+    private final int[] mSizes;
+    private final String[] mUrls;
+
+    private ImageVariants(int[] sizes, String[] urls) {
+        mSizes = sizes;
+        mUrls = urls;
+    }
+
+    public static ImageVariants fromImages(List<Image> images) {
+        if (images == null || images.isEmpty()) {
+            return EMPTY;
+        }
+        List<Image> sorted = new ArrayList<>();
+        for (Image image : images) {
+            if (image != null && image.url != null) {
+                sorted.add(image);
+            }
+        }
+        Collections.sort(sorted, new Comparator<Image>() {
+            @Override
+            public int compare(Image lhs, Image rhs) {
+                return size(lhs) - size(rhs);
+            }
+        });
+        int count = sorted.size();
+        int[] sizes = new int[count];
+        String[] urls = new String[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = size(sorted.get(i));
+            urls[i] = sorted.get(i).url;
+        }
+        return new ImageVariants(sizes, urls);
+    }
+
+    /**
+     * For a single image of unknown size, e.g. one saved before variants were kept.
+     */
+    public static ImageVariants fromUrl(String url) {
+        return url == null ? EMPTY : new ImageVariants(new int[] { 0 }, new String[] { url });
+    }
+
+    private static int size(Image image) {
+        int width = image.width != null ? image.width : 0;
+        int height = image.height != null ? image.height : 0;
+        return Math.max(width, height);
+    }
+
+    public boolean isEmpty() {
+        return mUrls.length == 0;
+    }
+
+    /**
+     * @param size the size of the view in pixels
+     * @return the URL of the smallest image at least as large as the view, the largest
+     * image if none is, or null if there are no images
+     */
+    public String getUrl(int size) {
+        for (int i = 0; i < mSizes.length; i++) {
+            if (mSizes[i] >= size) {
+                return mUrls[i];
+            }
+        }
+        return getLargestUrl();
+    }
+
+    /**
+     * @return the URLs of all the variants, from the smallest
+     */
+    public List<String> getUrls() {
+        return Collections.unmodifiableList(Arrays.asList(mUrls));
+    }
+
+    public String getLargestUrl() {
+        return mUrls.length == 0 ? null : mUrls[mUrls.length - 1];
+    }
+
+    /**
+     * @return the variants as "size url" lines, or null if there are none
+     */
+    public String encode() {
+        if (mUrls.length == 0) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mUrls.length; i++) {
+            if (i > 0) {
+                builder.append('\n');
+            }
+            builder.append(mSizes[i]).append(' ').append(mUrls[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reverses {@link #encode()}. Lines that can't be parsed are skipped.
+     */
+    public static ImageVariants decode(String encoded) {
+        if (TextUtils.isEmpty(encoded)) {
+            return EMPTY;
+        }
+        String[] lines = encoded.split("\n");
+        int[] sizes = new int[lines.length];
+        String[] urls = new String[lines.length];
+        int count = 0;
+        for (String line : lines) {
+            int space = line.indexOf(' ');
+            if (space <= 0) {
+                continue;
+            }
+            try {
+                sizes[count] = Integer.parseInt(line.substring(0, space));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            urls[count++] = line.substring(space + 1);
+        }
+        if (count < lines.length) {
+            int[] trimmedSizes = new int[count];
+            String[] trimmedUrls = new String[count];
+            System.arraycopy(sizes, 0, trimmedSizes, 0, count);
+            System.arraycopy(urls, 0, trimmedUrls, 0, count);
+            return new ImageVariants(trimmedSizes, trimmedUrls);
+        }
+        return new ImageVariants(sizes, urls);
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.mjhassanpur.spotifystreamer.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable view of a list of tracks to be played, handed to the music service by
+ * reference. The version is derived from the track IDs, so two snapshots of the same
+ * tracks in the same order have the same version and the service can tell in constant
+ * time that its queue doesn't need to be rebuilt.
+ */
+public class QueueSnapshot {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final List<TrackItem> mTracks;
+    private final List<String> mIds;
+    private final long mVersion;
+
+    private QueueSnapshot(List<TrackItem> tracks, List<String> ids, long version) {
+        mTracks = tracks;
+        mIds = ids;
+        mVersion = version;
+    }
+
+    public static QueueSnapshot of(List<TrackItem> tracks) {
+        List<String> ids = new ArrayList<>(tracks.size());
+        // 64-bit FNV-1a over the IDs, with a separator so that ["ab", "c"] != ["a", "bc"]
+        long version = FNV_OFFSET_BASIS;
+        for (TrackItem track : tracks) {
+            ids.add(track.id);
+            for (int i = 0, n = track.id.length(); i < n; i++) {
+                version = (version ^ track.id.charAt(i)) * FNV_PRIME;
+            }
+            version = (version ^ ',') * FNV_PRIME;
+        }
+        return new QueueSnapshot(Collections.unmodifiableList(new ArrayList<>(tracks)),
+                Collections.unmodifiableList(ids), version);
+    }
+
+    public List<TrackItem> getTracks() {
+        return mTracks;
+    }
+
+    public List<String> getIds() {
+        return mIds;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public int size() {
+        return mIds.size();
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.mjhassanpur.spotifystreamer.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import kaaes.spotify.webapi.android.models.ArtistSimple;
+import kaaes.spotify.webapi.android.models.Track;
+
+/**
+ * A lean, parcelable copy of a {@link Track} holding only the fields the app uses,
+ * for passing tracks between components without serializing the whole API model.
+ */
+public class TrackItem implements Parcelable {
+
+    public final String id;
+    public final String name;
+    public final String albumId;
+    public final String albumName;
+    // The largest image, for when the size it is shown at isn't known
+    public final String albumArtUrl;
+    public final ImageVariants albumArt;
+    public final String previewUrl;
+    public final String artistName;
+    public final String externalUrl;
+
+    public TrackItem(String id, String name, String albumId, String albumName, ImageVariants albumArt,
+                     String previewUrl, String artistName, String externalUrl) {
+        this.id = id;
+        this.name = name;
+        this.albumId = albumId;
+        this.albumName = albumName;
+        this.albumArt = albumArt;
+        this.albumArtUrl = albumArt.getLargestUrl();
+        this.previewUrl = previewUrl;
+        this.artistName = artistName;
+        this.externalUrl = externalUrl;
+    }
+
+    public static TrackItem fromTrack(Track track) {
+        String albumId = null;
+        String albumName = null;
+        ImageVariants albumArt = ImageVariants.EMPTY;
+        if (track.album != null) {
+            albumId = track.album.id;
+            albumName = track.album.name;
+            albumArt = ImageVariants.fromImages(track.album.images);
+        }
+        String artistName = null;
+        List<ArtistSimple> artists = track.artists;
+        if (artists != null && !artists.isEmpty()) {
+            artistName = artists.get(0).name;
+        }
+        String externalUrl = track.external_urls != null ? track.external_urls.get("spotify") : null;
+        return new TrackItem(track.id, track.name, albumId, albumName, albumArt, track.preview_url,
+                artistName, externalUrl);
+    }
+
+    public static ArrayList<TrackItem> fromTracks(List<Track> tracks) {
+        if (tracks == null) {
+            return null;
+        }
+        ArrayList<TrackItem> items = new ArrayList<>(tracks.size());
+        for (Track track : tracks) {
+            items.add(fromTrack(track));
+        }
+        return items;
+    }
+
+    private TrackItem(Parcel in) {
+        id = in.readString();
+        name = in.readString();
+        albumId = in.readString();
+        albumName = in.readString();
+        albumArt = ImageVariants.decode(in.readString());
+        albumArtUrl = albumArt.getLargestUrl();
+        previewUrl = in.readString();
+        artistName = in.readString();
+        externalUrl = in.readString();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(id);
+        dest.writeString(name);
+        dest.writeString(albumId);
+        dest.writeString(albumName);
+        dest.writeString(albumArt.encode());
+        dest.writeString(previewUrl);
+        dest.writeString(artistName);
+        dest.writeString(externalUrl);
+    }
+
+    public static final Creator<TrackItem> CREATOR = new Creator<TrackItem>() {
+        @Override
+        public TrackItem createFromParcel(Parcel in) {
+            return new TrackItem(in);
+        }
+
+        @Override
+        public TrackItem[] newArray(int size) {
+            return new TrackItem[size];
+        }
+    };
+}
@@ -16,16 +16,13 @@ import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import com.github.mjhassanpur.spotifystreamer.DownloadService;
 import com.github.mjhassanpur.spotifystreamer.MusicService;
 import com.github.mjhassanpur.spotifystreamer.R;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.github.mjhassanpur.spotifystreamer.model.ArtistItem;
+import com.github.mjhassanpur.spotifystreamer.model.TrackItem;
 
-import java.lang.reflect.Type;
-import java.util.List;
-
-import kaaes.spotify.webapi.android.models.Artist;
-import kaaes.spotify.webapi.android.models.Track;
+import java.util.ArrayList;
 
 public class ArtistSearchActivity extends AppCompatActivity implements ArtistSearchFragment.Callback,
         TopTracksFragment.Callback, MusicService.Callback {
@@ -39,14 +36,12 @@ public class ArtistSearchActivity extends AppCompatActivity implements ArtistSea
     private final String KEY_ARTIST = "artist";
     private final String KEY_TRACKS = "tracks";
     private final String KEY_SELECTED_TRACK = "selectedTrack";
-    private final Type mArtistType = new TypeToken<Artist>() {}.getType();
-    private final Type mTrackListType = new TypeToken<List<Track>>() {}.getType();
     private boolean mTwoPane;
     private boolean mRetainTopTracks;
     private MusicService mBoundService;
     private boolean mIsBound = false;
-    private int mTrackPosition;
-    private List<Track> mTracks;
+    // Pressed while the service was unbound, to preload once it is bound again
+    private TrackItem mPendingPreload;
     private boolean mServiceStarted = false;
     private MenuItem mPlayingItem;
 
@@ -69,6 +64,10 @@ public class ArtistSearchActivity extends AppCompatActivity implements ArtistSea
         } else {
             mTwoPane = false;
         }
+        if (savedInstanceState == null) {
+            // Picks up downloads a previous process left unfinished
+            DownloadService.resume(this);
+        }
         doBindService();
     }
 
@@ -91,11 +90,8 @@ public class ArtistSearchActivity extends AppCompatActivity implements ArtistSea
             startActivity(intent);
             return true;
         } else if (item.getItemId() == R.id.action_playing) {
-            Gson gson = new Gson();
-            Intent intent = new Intent(this, PlayerActivity.class);
-            intent.putExtra(KEY_TRACKS, gson.toJson(mTracks, mTrackListType));
-            intent.putExtra(KEY_SELECTED_TRACK, mTrackPosition);
-            startActivity(intent);
+            // The service owns the queue, so the player only needs to be shown
+            startActivity(new Intent(this, PlayerActivity.class));
         }
         return super.onOptionsItemSelected(item);
     }
@@ -189,7 +185,6 @@ public class ArtistSearchActivity extends AppCompatActivity implements ArtistSea
 
         private Handler handler = new Handler();
         private Runnable delayedAction = null;
-        private final int DELAY_IN_MILLISECONDS = 300;
 
         @Override
         public boolean onQueryTextSubmit(String query) {
@@ -218,6 +213,8 @@ public class ArtistSearchActivity extends AppCompatActivity implements ArtistSea
                 return false;
             }
 
+            mSearchFragment.showSuggestions(mQuery);
+
             // Cancel previous search
             if (delayedAction != null) {
                 handler.removeCallbacks(delayedAction);
@@ -231,8 +228,8 @@ public class ArtistSearchActivity extends AppCompatActivity implements ArtistSea
                 }
             };
 
-            // Delay the search
-            handler.postDelayed(delayedAction, DELAY_IN_MILLISECONDS);
+            // Delay the search, for longer when the network is slow
+            handler.postDelayed(delayedAction, mSearchFragment.getSearchDelay());
             return false;
         }
     }
@@ -244,35 +241,53 @@ public class ArtistSearchActivity extends AppCompatActivity implements ArtistSea
     }
 
     @Override
-    public void onItemSelected(Artist artist) {
-        Gson gson = new Gson();
+    public void onItemSelected(ArtistItem artist) {
         if (mTwoPane) {
             Bundle args = new Bundle();
-            args.putString(KEY_ARTIST, gson.toJson(artist, mArtistType));
+            args.putParcelable(KEY_ARTIST, artist);
             TopTracksFragment fragment = new TopTracksFragment();
             fragment.setArguments(args);
             replaceTopTracks(fragment);
         } else {
             Intent intent = new Intent(this, TopTracksActivity.class);
-            intent.putExtra(KEY_ARTIST, gson.toJson(artist, mArtistType));
+            intent.putExtra(KEY_ARTIST, artist);
             startActivity(intent);
         }
     }
 
     @Override
-    public void onItemSelected(List<Track> tracks, int position) {
-        mTracks = tracks;
-        mTrackPosition = position;
-        Gson gson = new Gson();
+    public void onItemSelected(ArrayList<TrackItem> tracks, int position) {
+        // Buffers while the player starts up; a no-op if the press already started it
+        onItemPressed(tracks.get(position));
         Intent intent = new Intent(this, PlayerActivity.class);
-        intent.putExtra(KEY_TRACKS, gson.toJson(tracks, mTrackListType));
+        intent.putParcelableArrayListExtra(KEY_TRACKS, tracks);
         intent.putExtra(KEY_SELECTED_TRACK, position);
         startActivity(intent);
     }
 
+    @Override
+    public void onItemPressed(TrackItem track) {
+        if (mIsBound && mBoundService != null) {
+            mBoundService.preload(track);
+        } else {
+            // Unbound when the service stopped, or not connected yet
+            mPendingPreload = track;
+            if (!mIsBound) {
+                doBindService();
+            }
+        }
+    }
+
+    @Override
+    public void onItemPressCanceled() {
+        mPendingPreload = null;
+        if (mIsBound && mBoundService != null) {
+            mBoundService.preload(null);
+        }
+    }
+
     @Override
     public void onTrackChange(int position) {
-        mTrackPosition = position;
     }
 
     @Override
@@ -299,6 +314,7 @@ public class ArtistSearchActivity extends AppCompatActivity implements ArtistSea
         if (mIsBound) {
             unbindService(mConnection);
             mIsBound = false;
+            mBoundService = null;
         }
     }
 
@@ -307,6 +323,10 @@ public class ArtistSearchActivity extends AppCompatActivity implements ArtistSea
         public void onServiceConnected(ComponentName className, IBinder service) {
             mBoundService = ((MusicService.MusicBinder)service).getService();
             registerCallback(mBoundService);
+            if (mPendingPreload != null) {
+                mBoundService.preload(mPendingPreload);
+                mPendingPreload = null;
+            }
         }
 
         public void onServiceDisconnected(ComponentName className) {
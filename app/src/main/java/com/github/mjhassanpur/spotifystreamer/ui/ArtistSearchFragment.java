@@ -1,5 +1,6 @@
 package com.github.mjhassanpur.spotifystreamer.ui;
 
+import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
@@ -12,20 +13,25 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
 
+import com.github.mjhassanpur.spotifystreamer.MusicService;
+import com.github.mjhassanpur.spotifystreamer.api.ArtistIndex;
+import com.github.mjhassanpur.spotifystreamer.api.ArtistSearcher;
+import com.github.mjhassanpur.spotifystreamer.api.TopTracksPrefetcher;
+import com.github.mjhassanpur.spotifystreamer.model.ArtistItem;
+import com.github.mjhassanpur.spotifystreamer.model.TrackItem;
 import com.github.mjhassanpur.spotifystreamer.ui.misc.DividerItemDecoration;
 import com.github.mjhassanpur.spotifystreamer.R;
 import com.github.mjhassanpur.spotifystreamer.ui.adapters.ArtistAdapter;
 import com.github.mjhassanpur.spotifystreamer.ui.misc.RecyclerItemClickListener;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.github.mjhassanpur.spotifystreamer.utils.PreferenceHelper;
 
-import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
-import kaaes.spotify.webapi.android.SpotifyApi;
-import kaaes.spotify.webapi.android.SpotifyService;
-import kaaes.spotify.webapi.android.models.Artist;
+import kaaes.spotify.webapi.android.models.Track;
 import retrofit.RetrofitError;
 
 public class ArtistSearchFragment extends Fragment {
@@ -33,22 +39,32 @@ public class ArtistSearchFragment extends Fragment {
     private RecyclerView mRecyclerView;
     private View mDefaultMessageView;
     private ArtistAdapter mArtistAdapter;
-    private List<Artist> mArtistList;
-    private Gson mGson;
-    private SpotifyService mSpotifyService;
+    private ArrayList<ArtistItem> mArtistList;
+    private ArtistSearcher mSearcher;
+    private ArtistIndex mArtistIndex;
+    private TopTracksPrefetcher mPrefetcher;
+    private String mCountry;
+    private LinearLayoutManager mLayoutManager;
+    // Whether the list shows search results with more pages to load, rather than suggestions
+    private boolean mHasMore;
+    private boolean mShowingSuggestions;
     private final String KEY_ARTISTS = "artists";
+    private final String KEY_HAS_MORE = "hasMore";
     private final static String LOG_TAG = "ArtistSearchFragment";
-    private final Type mArtistListType = new TypeToken<List<Artist>>() {}.getType();
+    private final static int MAX_SUGGESTIONS = 20;
+    // The next page is loaded when the last visible item is this close to the end
+    private final static int LOAD_MORE_THRESHOLD = 5;
 
     public interface Callback {
-        void onItemSelected(Artist artist);
+        void onItemSelected(ArtistItem artist);
     }
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        mSpotifyService = new SpotifyApi().getService();
-        mGson = new Gson();
+        mSearcher = ArtistSearcher.getInstance(getActivity());
+        mArtistIndex = ArtistIndex.getInstance(getActivity());
+        mPrefetcher = TopTracksPrefetcher.getInstance(getActivity());
     }
 
     @Override
@@ -58,40 +74,85 @@ public class ArtistSearchFragment extends Fragment {
         mDefaultMessageView = view.findViewById(R.id.message_container);
         setupRecyclerView();
         if (savedInstanceState == null) {
-            mRecyclerView.setAdapter(new ArtistAdapter(new ArrayList<Artist>()));
             showDefaultSearchMessage();
         } else {
-            String json = savedInstanceState.getString(KEY_ARTISTS);
-            if (json != null) {
-                mArtistList = mGson.fromJson(json, mArtistListType);
-                updateArtistAdapter(mArtistList);
-            }
+            mArtistList = savedInstanceState.getParcelableArrayList(KEY_ARTISTS);
+            mHasMore = savedInstanceState.getBoolean(KEY_HAS_MORE);
+            updateArtistAdapter(mArtistList);
         }
         return view;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        mCountry = PreferenceHelper.getCountry(getActivity());
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mSearcher.cancel();
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putString(KEY_ARTISTS, mGson.toJson(mArtistList, mArtistListType));
+        outState.putParcelableArrayList(KEY_ARTISTS, mArtistList);
+        outState.putBoolean(KEY_HAS_MORE, mHasMore);
     }
 
     private void setupRecyclerView() {
-        mRecyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
+        mLayoutManager = new LinearLayoutManager(getActivity());
+        mRecyclerView.setLayoutManager(mLayoutManager);
+        mRecyclerView.addOnScrollListener(new LoadMoreOnScrollListener());
         mRecyclerView.addItemDecoration(new DividerItemDecoration(getActivity(), null));
         mRecyclerView.addOnItemTouchListener(new RecyclerItemClickListener(getActivity(), new OnItemClickListener()));
+        // One adapter for the lifetime of the view, so that new results keep its views and images
+        mArtistAdapter = new ArtistAdapter(new ArrayList<ArtistItem>());
+        mArtistAdapter.setOnBindListener(new PrefetchOnBindListener());
+        mArtistAdapter.setOnPlayListener(new ArtistAdapter.OnPlayListener() {
+            @Override
+            public void onPlay(ArtistItem artist) {
+                playArtist(artist);
+            }
+        });
+        mRecyclerView.setAdapter(mArtistAdapter);
     }
 
     public void searchArtists(String query) {
         if (query != null && !query.trim().isEmpty()) {
-            new SearchArtistsTask().execute(query);
+            mPrefetcher.cancelAll();
+            mSearcher.search(query, mSearchCallback);
+        }
+    }
+
+    /**
+     * Shows the previously seen artists matching the query right away, until the
+     * results of the search come in.
+     */
+    public void showSuggestions(String query) {
+        if (query != null && !query.trim().isEmpty()) {
+            ArrayList<ArtistItem> suggestions = mArtistIndex.lookup(query, MAX_SUGGESTIONS);
+            if (!suggestions.isEmpty()) {
+                mShowingSuggestions = true;
+                mHasMore = false;
+                mArtistList = suggestions;
+                updateArtistAdapter(mArtistList);
+            }
         }
     }
 
-    private boolean updateArtistAdapter(List<Artist> artists) {
+    /**
+     * @return how long to wait after the last keystroke before searching
+     */
+    public long getSearchDelay() {
+        return mSearcher.getDebounceDelay();
+    }
+
+    private boolean updateArtistAdapter(ArrayList<ArtistItem> artists) {
         if (artists != null && !artists.isEmpty()) {
-            mArtistAdapter = new ArtistAdapter(new ArrayList<>(artists));
-            mRecyclerView.setAdapter(mArtistAdapter);
+            mArtistAdapter.setArtists(artists);
             showArtistList();
             return true;
         }
@@ -111,31 +172,172 @@ public class ArtistSearchFragment extends Fragment {
     private class OnItemClickListener extends RecyclerItemClickListener.SimpleOnItemClickListener {
 
         @Override public void onItemClick(View childView, int position) {
-            Artist artist = mArtistList.get(position);
+            // The adapter's list, which is what is on screen while a diff is pending
+            ArtistItem artist = mArtistAdapter.getArtist(position);
             ((Callback) getActivity()).onItemSelected(artist);
         }
     }
 
-    private class SearchArtistsTask extends AsyncTask<String, Void, Void> {
+    /**
+     * Plays the top tracks of the artist from the first one, without leaving the search.
+     * Starts right away if they were prefetched.
+     */
+    private void playArtist(ArtistItem artist) {
+        List<Track> tracks = mPrefetcher.peek(artist.id, mCountry);
+        if (tracks != null) {
+            playTracks(artist, TrackItem.fromTracks(tracks));
+        } else {
+            // Not behind other tasks on the serial executor, e.g. fetching the top tracks pane
+            new PlayArtistTask(artist, mCountry).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    private void playTracks(ArtistItem artist, ArrayList<TrackItem> tracks) {
+        if (getActivity() == null) {
+            return;
+        }
+        if (tracks == null || tracks.isEmpty()) {
+            Toast.makeText(getActivity(), R.string.message_no_tracks, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        // The service builds the queue and starts preparing the first track itself
+        Intent intent = new Intent(getActivity(), MusicService.class);
+        intent.setAction(MusicService.ACTION_CMD);
+        intent.putExtra(MusicService.CMD_NAME, MusicService.CMD_PLAY);
+        intent.putParcelableArrayListExtra(PlayerFragment.KEY_TRACKS, tracks);
+        intent.putExtra(PlayerFragment.KEY_SELECTED_TRACK, 0);
+        getActivity().startService(intent);
+        Toast.makeText(getActivity(), getString(R.string.message_playing_artist, artist.name),
+                Toast.LENGTH_SHORT).show();
+    }
+
+    private class PlayArtistTask extends AsyncTask<Void, Void, ArrayList<TrackItem>> {
+
+        private final ArtistItem mArtist;
+        private final String mCountry;
+
+        PlayArtistTask(ArtistItem artist, String country) {
+            mArtist = artist;
+            mCountry = country;
+        }
+
+        @Override
+        protected ArrayList<TrackItem> doInBackground(Void... params) {
+            // Joins the prefetch for the artist if it is in flight
+            return TrackItem.fromTracks(mPrefetcher.load(mArtist.id, mCountry));
+        }
 
         @Override
-        protected Void doInBackground(String... params) {
-            String query = params[0];
-            try {
-                mArtistList = mSpotifyService.searchArtists(query).artists.items;
-            } catch (RetrofitError e) {
-                Log.e(LOG_TAG, "An error occurred when attempting to retrieve artists");
+        protected void onPostExecute(ArrayList<TrackItem> tracks) {
+            playTracks(mArtist, tracks);
+        }
+    }
+
+    /**
+     * Prefetches the top tracks of the first artists as they are shown
+     */
+    private class PrefetchOnBindListener implements ArtistAdapter.OnBindListener {
+
+        @Override
+        public void onBind(ArtistItem artist, int position) {
+            if (position < TopTracksPrefetcher.PREFETCH_LIMIT && mCountry != null) {
+                mPrefetcher.prefetch(artist.id, mCountry);
+            }
+        }
+    }
+
+    /**
+     * Loads the next page of results as the end of the list comes into view
+     */
+    private class LoadMoreOnScrollListener extends RecyclerView.OnScrollListener {
+
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            if (dy <= 0 || !mHasMore || mShowingSuggestions) {
+                return;
+            }
+            int lastVisible = mLayoutManager.findLastVisibleItemPosition();
+            if (lastVisible >= mLayoutManager.getItemCount() - LOAD_MORE_THRESHOLD) {
+                mSearcher.loadMore(mSearchCallback);
             }
-            return null;
         }
+    }
+
+    private final ArtistSearcher.Callback mSearchCallback = new ArtistSearcher.Callback() {
 
         @Override
-        protected void onPostExecute(Void aVoid) {
-            if (!updateArtistAdapter(mArtistList)) {
-                mRecyclerView.setAdapter(new ArtistAdapter(new ArrayList<Artist>()));
-                showDefaultSearchMessage();
-                Toast.makeText(getActivity(), "No artists found. Please refine search.", Toast.LENGTH_SHORT).show();
+        public void onSearchResult(String query, ArrayList<ArtistItem> artists, int offset, boolean hasMore) {
+            // Local suggestions go after the last page, where paging can't duplicate them
+            List<ArtistItem> page = hasMore ? artists : merge(artists, mArtistIndex.lookup(query, MAX_SUGGESTIONS));
+            if (offset == 0) {
+                mShowingSuggestions = false;
+                mHasMore = hasMore;
+                mArtistList = merge(page, Collections.<ArtistItem>emptyList());
+                showSearchResults();
+            } else if (!mShowingSuggestions && mArtistList != null) {
+                mHasMore = hasMore;
+                appendArtists(page);
             }
         }
+
+        @Override
+        public void onSearchError(String query, int offset, RetrofitError error) {
+            Log.e(LOG_TAG, "An error occurred when attempting to retrieve artists");
+            if (offset == 0) {
+                // Fall back to what was seen before, e.g. when offline
+                mHasMore = false;
+                mShowingSuggestions = false;
+                mArtistList = mArtistIndex.lookup(query, MAX_SUGGESTIONS);
+                showSearchResults();
+            }
+        }
+    };
+
+    /**
+     * @return the artists of the first list followed by those of the second it lacks
+     */
+    private static ArrayList<ArtistItem> merge(List<ArtistItem> first, List<ArtistItem> second) {
+        ArrayList<ArtistItem> merged = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        addMissing(merged, ids, first);
+        addMissing(merged, ids, second);
+        return merged;
+    }
+
+    private static void addMissing(List<ArtistItem> list, Set<String> ids, List<ArtistItem> artists) {
+        if (artists != null) {
+            for (ArtistItem artist : artists) {
+                if (ids.add(artist.id)) {
+                    list.add(artist);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the artists not shown yet to the end of the list, without rebinding the rest
+     */
+    private void appendArtists(List<ArtistItem> page) {
+        Set<String> ids = new HashSet<>();
+        for (ArtistItem artist : mArtistList) {
+            ids.add(artist.id);
+        }
+        ArrayList<ArtistItem> added = new ArrayList<>();
+        addMissing(added, ids, page);
+        if (!added.isEmpty()) {
+            mArtistList.addAll(added);
+            mArtistAdapter.addArtists(added);
+        }
+    }
+
+    private void showSearchResults() {
+        if (getActivity() == null || mRecyclerView == null) {
+            return;
+        }
+        if (!updateArtistAdapter(mArtistList)) {
+            mArtistAdapter.setArtists(new ArrayList<ArtistItem>());
+            showDefaultSearchMessage();
+            Toast.makeText(getActivity(), "No artists found. Please refine search.", Toast.LENGTH_SHORT).show();
+        }
     }
 }
@@ -20,8 +20,8 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.graphics.Bitmap;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.SystemClock;
@@ -29,6 +29,7 @@ import android.support.v4.app.DialogFragment;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.support.v4.view.ViewCompat;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -38,21 +39,15 @@ import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
-import com.bumptech.glide.Glide;
 import com.github.mjhassanpur.spotifystreamer.MusicService;
 import com.github.mjhassanpur.spotifystreamer.R;
+import com.github.mjhassanpur.spotifystreamer.media.AlbumArtCache;
+import com.github.mjhassanpur.spotifystreamer.media.MediaProvider;
+import com.github.mjhassanpur.spotifystreamer.model.QueueSnapshot;
+import com.github.mjhassanpur.spotifystreamer.model.TrackItem;
 import com.github.mjhassanpur.spotifystreamer.utils.LogHelper;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 
-import java.lang.reflect.Type;
-import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
-
-import kaaes.spotify.webapi.android.models.Track;
+import java.util.ArrayList;
 
 import static android.view.View.INVISIBLE;
 import static android.view.View.VISIBLE;
@@ -61,14 +56,15 @@ public class PlayerFragment extends DialogFragment implements MusicService.Callb
 
     private static final String TAG = LogHelper.makeLogTag(PlayerActivity.class);
 
-    private static final long PROGRESS_UPDATE_INTERNAL = 500;
-    private static final long PROGRESS_UPDATE_INITIAL_INTERVAL = 100;
 
     public static final String KEY_SELECTED_TRACK = "selectedTrack";
     public static final String KEY_TRACKS = "tracks";
 
     private SeekBar mSeekbar;
     private ImageView mAlbumImage;
+    private AlbumArtCache mAlbumArtCache;
+    // The album whose art is being shown or fetched, so that a late fetch doesn't replace newer art
+    private String mAlbumId;
     private TextView mTrackName;
     private TextView mArtistName;
     private TextView mAlbumName;
@@ -82,24 +78,25 @@ public class PlayerFragment extends DialogFragment implements MusicService.Callb
     private MusicService mBoundService;
     private boolean mIsBound = false;
 
-    private Gson mGson;
     private int mTrackPosition;
-    private Track mSelectedTrack;
-    private List<Track> mTrackList;
-    private final Type mTrackListType = new TypeToken<List<Track>>() {}.getType();
-
-    private Handler mHandler = new Handler();
-    private final Runnable mUpdateProgressTask = new Runnable() {
+    private ArrayList<TrackItem> mTrackList;
+    // Queue to hand over to the service once bound, if this fragment was opened to play one
+    private QueueSnapshot mPendingQueue;
+
+    // Progress is interpolated on every animation frame while playing and visible
+    private boolean mVisible;
+    private boolean mProgressRunning;
+    private int mShownProgress = -1;
+    private int mShownSeconds = -1;
+    private final Runnable mProgressFrame = new Runnable() {
         @Override
         public void run() {
-            updateProgress();
+            if (mProgressRunning) {
+                updateProgress();
+                ViewCompat.postOnAnimation(mSeekbar, this);
+            }
         }
     };
-
-    private final ScheduledExecutorService mExecutorService =
-            Executors.newSingleThreadScheduledExecutor();
-
-    private ScheduledFuture<?> mScheduleFuture;
     private PlaybackStateCompat mLastPlaybackState;
 
     private MediaControllerCompat.Callback mCallback = new MediaControllerCompat.Callback() {
@@ -121,24 +118,21 @@ public class PlayerFragment extends DialogFragment implements MusicService.Callb
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        mGson = new Gson();
-        String json;
         if (savedInstanceState == null) {
             Bundle arguments = getArguments();
             if (arguments != null) {
                 mTrackPosition = arguments.getInt(KEY_SELECTED_TRACK);
-                json = arguments.getString(KEY_TRACKS);
+                mTrackList = arguments.getParcelableArrayList(KEY_TRACKS);
             } else {
                 mTrackPosition = getActivity().getIntent().getIntExtra(KEY_SELECTED_TRACK, 0);
-                json = getActivity().getIntent().getStringExtra(KEY_TRACKS);
+                mTrackList = getActivity().getIntent().getParcelableArrayListExtra(KEY_TRACKS);
+            }
+            if (mTrackList != null) {
+                mPendingQueue = QueueSnapshot.of(mTrackList);
             }
         } else {
+            // The queue was handed over to the service already
             mTrackPosition = savedInstanceState.getInt(KEY_SELECTED_TRACK);
-            json = savedInstanceState.getString(KEY_TRACKS);
-        }
-        if (json != null && !json.equals("null")) {
-            mTrackList = mGson.fromJson(json, mTrackListType);
-            mSelectedTrack = mTrackList.get(mTrackPosition);
         }
         setHasOptionsMenu(true);
         doBindService();
@@ -149,6 +143,10 @@ public class PlayerFragment extends DialogFragment implements MusicService.Callb
         View rootView = inflater.inflate(R.layout.fragment_player, container, false);
         mSeekbar = (SeekBar) rootView.findViewById(R.id.seekBar);
         mAlbumImage = (ImageView) rootView.findViewById(R.id.album_image);
+        mAlbumArtCache = AlbumArtCache.getInstance(getActivity());
+        mAlbumId = null;
+        mShownProgress = -1;
+        mShownSeconds = -1;
         mTrackName = (TextView) rootView.findViewById(R.id.track_name);
         mArtistName = (TextView) rootView.findViewById(R.id.artist_name);
         mAlbumName = (TextView) rootView.findViewById(R.id.album_name);
@@ -208,6 +206,7 @@ public class PlayerFragment extends DialogFragment implements MusicService.Callb
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
                 mMediaController.getTransportControls().seekTo(seekBar.getProgress());
+                mShownProgress = seekBar.getProgress();
                 scheduleSeekbarUpdate();
             }
         });
@@ -226,7 +225,11 @@ public class PlayerFragment extends DialogFragment implements MusicService.Callb
         if (item.getItemId() == R.id.action_share) {
             Intent i = new Intent(Intent.ACTION_SEND);
             i.setType("text/plain");
-            String url = mTrackList.get(mTrackPosition).external_urls.get("spotify");
+            TrackItem track = mBoundService != null ? mBoundService.getCurrentTrack() : null;
+            if (track == null) {
+                return true;
+            }
+            String url = track.externalUrl;
             i.putExtra(Intent.EXTRA_TEXT, url);
             startActivity(Intent.createChooser(i, "Share Track"));
             return true;
@@ -238,31 +241,22 @@ public class PlayerFragment extends DialogFragment implements MusicService.Callb
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         outState.putInt(KEY_SELECTED_TRACK, mTrackPosition);
-        outState.putString(KEY_TRACKS, mGson.toJson(mTrackList, mTrackListType));
-    }
-
-    @Override
-    public void onActivityCreated(Bundle savedInstanceState) {
-        super.onActivityCreated(savedInstanceState);
-        Intent intent = new Intent(getActivity(), MusicService.class);
-        intent.setAction(MusicService.ACTION_CMD);
-        intent.putExtra(MusicService.CMD_NAME, MusicService.CMD_PLAY);
-        intent.putExtra(KEY_SELECTED_TRACK, mTrackPosition);
-        intent.putExtra(KEY_TRACKS, mGson.toJson(mTrackList, mTrackListType));
-        getActivity().startService(intent);
     }
 
     @Override
     public void onStart() {
         super.onStart();
-
+        mVisible = true;
+        if (mLastPlaybackState != null && mLastPlaybackState.getState() == PlaybackStateCompat.STATE_PLAYING) {
+            updateProgress();
+            scheduleSeekbarUpdate();
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         stopSeekbarUpdate();
-        mExecutorService.shutdown();
         doUnbindService();
         if (mMediaController != null) {
             mMediaController.unregisterCallback(mCallback);
@@ -272,25 +266,27 @@ public class PlayerFragment extends DialogFragment implements MusicService.Callb
     @Override
     public void onStop() {
         super.onStop();
+        // Nothing to animate while hidden; onStart picks up from the playback state
+        mVisible = false;
+        stopSeekbarUpdate();
     }
 
+    /**
+     * Starts updating the progress on each animation frame, in step with drawing, for as
+     * long as the fragment is visible.
+     */
     private void scheduleSeekbarUpdate() {
-        stopSeekbarUpdate();
-        if (!mExecutorService.isShutdown()) {
-            mScheduleFuture = mExecutorService.scheduleAtFixedRate(
-                    new Runnable() {
-                        @Override
-                        public void run() {
-                            mHandler.post(mUpdateProgressTask);
-                        }
-                    }, PROGRESS_UPDATE_INITIAL_INTERVAL,
-                    PROGRESS_UPDATE_INTERNAL, TimeUnit.MILLISECONDS);
+        if (mProgressRunning || !mVisible || mSeekbar == null) {
+            return;
         }
+        mProgressRunning = true;
+        ViewCompat.postOnAnimation(mSeekbar, mProgressFrame);
     }
 
     private void stopSeekbarUpdate() {
-        if (mScheduleFuture != null) {
-            mScheduleFuture.cancel(false);
+        mProgressRunning = false;
+        if (mSeekbar != null) {
+            mSeekbar.removeCallbacks(mProgressFrame);
         }
     }
 
@@ -302,10 +298,45 @@ public class PlayerFragment extends DialogFragment implements MusicService.Callb
         mTrackName.setText(metadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE));
         mArtistName.setText(metadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST));
         mAlbumName.setText(metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM));
-        Glide.with(this)
-                .load(metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI))
-                .error(R.drawable.default_album_image)
-                .into(mAlbumImage);
+        updateAlbumArt(metadata);
+    }
+
+    private void updateAlbumArt(MediaMetadataCompat metadata) {
+        int size = getAlbumArtSize();
+        String albumId = MediaProvider.getAlbumId(metadata);
+        if (albumId != null && albumId.equals(mAlbumId)) {
+            return;
+        }
+        mAlbumId = albumId;
+        String url = metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI);
+        if (albumId == null || url == null) {
+            mAlbumImage.setImageResource(R.drawable.default_album_image);
+            return;
+        }
+        // The notification fetches the same art, so it usually only needs scaling here
+        Bitmap cached = mAlbumArtCache.getCached(albumId, size);
+        if (cached != null) {
+            mAlbumImage.setImageBitmap(cached);
+            return;
+        }
+        mAlbumImage.setImageResource(R.drawable.default_album_image);
+        mAlbumArtCache.fetch(albumId, url, size, new AlbumArtCache.FetchListener() {
+            @Override
+            public void onFetched(String albumId, Bitmap bitmap) {
+                if (albumId.equals(mAlbumId) && mAlbumImage != null) {
+                    mAlbumImage.setImageBitmap(bitmap);
+                }
+            }
+        });
+    }
+
+    private int getAlbumArtSize() {
+        int size = Math.max(mAlbumImage.getWidth(), mAlbumImage.getHeight());
+        if (size == 0) {
+            // Not laid out yet; the album art is at most as wide as the screen
+            size = getResources().getDisplayMetrics().widthPixels;
+        }
+        return size;
     }
 
     private void updateDuration(MediaMetadataCompat metadata) {
@@ -315,6 +346,7 @@ public class PlayerFragment extends DialogFragment implements MusicService.Callb
         LogHelper.d(TAG, "updateDuration called ");
         int duration = (int) metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
         mSeekbar.setMax(duration);
+        mShownProgress = -1;
     }
 
     private void updatePlaybackState(PlaybackStateCompat state) {
@@ -363,12 +395,22 @@ public class PlayerFragment extends DialogFragment implements MusicService.Callb
                     mLastPlaybackState.getLastPositionUpdateTime();
             currentPosition += (int) timeDelta * mLastPlaybackState.getPlaybackSpeed();
         }
-        mSeekbar.setProgress((int) currentPosition);
-        int seconds = ((int) currentPosition) / 1000;
-        if (seconds < 10) {
-            mElapsedTime.setText("0:0" + seconds);
-        } else {
-            mElapsedTime.setText("0:" + seconds);
+        // Only touch the views when what they show changes: the seekbar when the thumb
+        // would move by at least a pixel, the text once a second
+        int progress = (int) Math.min(currentPosition, mSeekbar.getMax());
+        int step = Math.max(1, mSeekbar.getMax() / Math.max(1, mSeekbar.getWidth()));
+        if (mShownProgress < 0 || Math.abs(progress - mShownProgress) >= step) {
+            mSeekbar.setProgress(progress);
+            mShownProgress = progress;
+        }
+        int seconds = progress / 1000;
+        if (seconds != mShownSeconds) {
+            mShownSeconds = seconds;
+            if (seconds < 10) {
+                mElapsedTime.setText("0:0" + seconds);
+            } else {
+                mElapsedTime.setText("0:" + seconds);
+            }
         }
     }
 
@@ -408,7 +450,12 @@ public class PlayerFragment extends DialogFragment implements MusicService.Callb
     private ServiceConnection mConnection = new ServiceConnection() {
 
         public void onServiceConnected(ComponentName className, IBinder service) {
-            mBoundService = ((MusicService.MusicBinder)service).getService();
+            MusicService.MusicBinder binder = (MusicService.MusicBinder) service;
+            mBoundService = binder.getService();
+            if (mPendingQueue != null) {
+                binder.playFromQueue(mPendingQueue, mTrackPosition);
+                mPendingQueue = null;
+            }
             try {
                 mMediaController = new MediaControllerCompat(getActivity(), mBoundService.getSessionToken());
                 mMediaController.registerCallback(mCallback);
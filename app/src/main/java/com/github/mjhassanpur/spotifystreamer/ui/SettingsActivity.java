@@ -65,6 +65,7 @@ public class SettingsActivity extends PreferenceActivity {
         // to reflect the new value, per the Android Design guidelines.
         bindPreferenceSummaryToValue(findPreference(getResources().getString(R.string.pref_key_country)));
         bindPreferenceSummaryToValue(findPreference(getResources().getString(R.string.pref_key_notifications)));
+        bindPreferenceSummaryToValue(findPreference(getResources().getString(R.string.pref_key_cache_size)));
     }
 
     /**
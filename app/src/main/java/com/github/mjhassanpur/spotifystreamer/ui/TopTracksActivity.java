@@ -14,24 +14,19 @@ import android.view.MenuItem;
 
 import com.github.mjhassanpur.spotifystreamer.MusicService;
 import com.github.mjhassanpur.spotifystreamer.R;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.github.mjhassanpur.spotifystreamer.model.TrackItem;
 
-import java.lang.reflect.Type;
-import java.util.List;
-
-import kaaes.spotify.webapi.android.models.Track;
+import java.util.ArrayList;
 
 public class TopTracksActivity extends AppCompatActivity implements TopTracksFragment.Callback,
         MusicService.Callback {
 
     private final String KEY_TRACKS = "tracks";
     private final String KEY_SELECTED_TRACK = "selectedTrack";
-    private final Type mTrackListType = new TypeToken<List<Track>>() {}.getType();
     private MusicService mBoundService;
     private boolean mIsBound = false;
-    private int mTrackPosition;
-    private List<Track> mTracks;
+    // Pressed while the service was unbound, to preload once it is bound again
+    private TrackItem mPendingPreload;
     private boolean mServiceStarted = false;
     private MenuItem mPlayingItem;
 
@@ -70,26 +65,43 @@ public class TopTracksActivity extends AppCompatActivity implements TopTracksFra
             startActivity(intent);
             return true;
         } else if (item.getItemId() == R.id.action_playing) {
-            Gson gson = new Gson();
-            Intent intent = new Intent(this, PlayerActivity.class);
-            intent.putExtra(KEY_TRACKS, gson.toJson(mTracks, mTrackListType));
-            intent.putExtra(KEY_SELECTED_TRACK, mTrackPosition);
-            startActivity(intent);
+            // The service owns the queue, so the player only needs to be shown
+            startActivity(new Intent(this, PlayerActivity.class));
         }
         return super.onOptionsItemSelected(item);
     }
 
     @Override
-    public void onItemSelected(List<Track> tracks, int position) {
-        mTracks = tracks;
-        mTrackPosition = position;
-        Gson gson = new Gson();
+    public void onItemSelected(ArrayList<TrackItem> tracks, int position) {
+        // Buffers while the player starts up; a no-op if the press already started it
+        onItemPressed(tracks.get(position));
         Intent intent = new Intent(this, PlayerActivity.class);
-        intent.putExtra(KEY_TRACKS, gson.toJson(tracks, mTrackListType));
+        intent.putParcelableArrayListExtra(KEY_TRACKS, tracks);
         intent.putExtra(KEY_SELECTED_TRACK, position);
         startActivity(intent);
     }
 
+    @Override
+    public void onItemPressed(TrackItem track) {
+        if (mIsBound && mBoundService != null) {
+            mBoundService.preload(track);
+        } else {
+            // Unbound when the service stopped, or not connected yet
+            mPendingPreload = track;
+            if (!mIsBound) {
+                doBindService();
+            }
+        }
+    }
+
+    @Override
+    public void onItemPressCanceled() {
+        mPendingPreload = null;
+        if (mIsBound && mBoundService != null) {
+            mBoundService.preload(null);
+        }
+    }
+
     @Override
     protected void onStart() {
         super.onStart();
@@ -108,7 +120,6 @@ public class TopTracksActivity extends AppCompatActivity implements TopTracksFra
 
     @Override
     public void onTrackChange(int position) {
-        mTrackPosition = position;
     }
 
     @Override
@@ -135,6 +146,7 @@ public class TopTracksActivity extends AppCompatActivity implements TopTracksFra
         if (mIsBound) {
             unbindService(mConnection);
             mIsBound = false;
+            mBoundService = null;
         }
     }
 
@@ -143,6 +155,10 @@ public class TopTracksActivity extends AppCompatActivity implements TopTracksFra
         public void onServiceConnected(ComponentName className, IBinder service) {
             mBoundService = ((MusicService.MusicBinder)service).getService();
             registerCallback(mBoundService);
+            if (mPendingPreload != null) {
+                mBoundService.preload(mPendingPreload);
+                mPendingPreload = null;
+            }
         }
 
         public void onServiceDisconnected(ComponentName className) {
@@ -1,5 +1,6 @@
 package com.github.mjhassanpur.spotifystreamer.ui;
 
+import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
@@ -8,27 +9,30 @@ import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
 
+import com.github.mjhassanpur.spotifystreamer.DownloadService;
+import com.github.mjhassanpur.spotifystreamer.MusicService;
+import com.github.mjhassanpur.spotifystreamer.api.CachedSpotifyService;
+import com.github.mjhassanpur.spotifystreamer.api.TopTracksPrefetcher;
+import com.github.mjhassanpur.spotifystreamer.model.ArtistItem;
+import com.github.mjhassanpur.spotifystreamer.model.TrackItem;
 import com.github.mjhassanpur.spotifystreamer.ui.misc.DividerItemDecoration;
 import com.github.mjhassanpur.spotifystreamer.R;
 import com.github.mjhassanpur.spotifystreamer.ui.adapters.TrackAdapter;
 import com.github.mjhassanpur.spotifystreamer.ui.misc.RecyclerItemClickListener;
 import com.github.mjhassanpur.spotifystreamer.utils.PreferenceHelper;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 
-import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import kaaes.spotify.webapi.android.SpotifyApi;
-import kaaes.spotify.webapi.android.SpotifyService;
-import kaaes.spotify.webapi.android.models.Artist;
 import kaaes.spotify.webapi.android.models.Track;
 import retrofit.RetrofitError;
 
@@ -36,39 +40,57 @@ public class TopTracksFragment extends Fragment {
 
     private RecyclerView mRecyclerView;
     private TrackAdapter mTrackAdapter;
-    private List<Track> mTrackList;
-    private Artist mArtist;
-    private Gson mGson;
-    private SpotifyService mSpotifyService;
+    private ArrayList<TrackItem> mTrackList;
+    private ArtistItem mArtist;
+    private CachedSpotifyService mSpotifyService;
+    private TopTracksPrefetcher mPrefetcher;
     private final String KEY_TRACKS = "tracks";
     private final String KEY_ARTIST = "artist";
     private static final String LOG_TAG = "TopTracksFragment";
-    private final Type mArtistType = new TypeToken<Artist>() {}.getType();
-    private final Type mTrackListType = new TypeToken<List<Track>>() {}.getType();
 
     public interface Callback {
-        void onItemSelected(List<Track> tracks, int position);
+        void onItemSelected(ArrayList<TrackItem> tracks, int position);
+
+        /**
+         * Called when a track is pressed and likely about to be selected, so that its
+         * playback can get a head start.
+         */
+        void onItemPressed(TrackItem track);
+
+        /**
+         * Called when the pressed track wasn't selected after all.
+         */
+        void onItemPressCanceled();
     }
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
-        mSpotifyService = new SpotifyApi().getService();
-        mGson = new Gson();
+        mSpotifyService = CachedSpotifyService.getInstance(getActivity());
+        mPrefetcher = TopTracksPrefetcher.getInstance(getActivity());
         Bundle arguments = getArguments();
         if (arguments != null) {
-            String json = arguments.getString(KEY_ARTIST);
-            if (json != null) {
-                mArtist = mGson.fromJson(json, mArtistType);
-            }
+            mArtist = arguments.getParcelable(KEY_ARTIST);
         } else {
-            String json = getActivity().getIntent().getStringExtra(KEY_ARTIST);
-            if (json != null) {
-                mArtist = mGson.fromJson(json, mArtistType);
-            }
+            mArtist = getActivity().getIntent().getParcelableExtra(KEY_ARTIST);
         }
+        setHasOptionsMenu(true);
         super.onCreate(savedInstanceState);
     }
 
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+        inflater.inflate(R.menu.menu_top_tracks_fragment, menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_make_available_offline) {
+            makeAvailableOffline();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_top_tracks, container, false);
@@ -79,11 +101,8 @@ public class TopTracksFragment extends Fragment {
                 fetchTopTracks();
             }
         } else {
-            String json = savedInstanceState.getString(KEY_TRACKS);
-            if (json != null) {
-                mTrackList = mGson.fromJson(json, mTrackListType);
-                updateTrackAdapter(mTrackList);
-            }
+            mTrackList = savedInstanceState.getParcelableArrayList(KEY_TRACKS);
+            updateTrackAdapter(mTrackList);
         }
         return view;
     }
@@ -91,23 +110,31 @@ public class TopTracksFragment extends Fragment {
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putString(KEY_TRACKS, mGson.toJson(mTrackList, mTrackListType));
+        outState.putParcelableArrayList(KEY_TRACKS, mTrackList);
     }
 
     private void setupRecyclerView() {
         mRecyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
         mRecyclerView.addItemDecoration(new DividerItemDecoration(getActivity(), null));
         mRecyclerView.addOnItemTouchListener(new RecyclerItemClickListener(getActivity(), new OnItemClickListener()));
+        mTrackAdapter = new TrackAdapter(new ArrayList<TrackItem>());
+        mRecyclerView.setAdapter(mTrackAdapter);
     }
 
     private void fetchTopTracks() {
+        // Render immediately if the tracks were prefetched from the search results
+        List<Track> tracks = mPrefetcher.peek(mArtist.id, PreferenceHelper.getCountry(getActivity()));
+        if (tracks != null) {
+            mTrackList = TrackItem.fromTracks(tracks);
+            updateTrackAdapter(mTrackList);
+            return;
+        }
         new FetchTopTracksTask().execute();
     }
 
-    private boolean updateTrackAdapter(List<Track> tracks) {
+    private boolean updateTrackAdapter(ArrayList<TrackItem> tracks) {
         if (tracks != null && !tracks.isEmpty()) {
-            mTrackAdapter = new TrackAdapter(new ArrayList<>(tracks));
-            mRecyclerView.setAdapter(mTrackAdapter);
+            mTrackAdapter.setTracks(tracks);
             return true;
         }
         return false;
@@ -117,10 +144,48 @@ public class TopTracksFragment extends Fragment {
 
         @Override
         public void onItemClick(View childView, int position) {
-            ((Callback) getActivity()).onItemSelected(mTrackList, position);
+            // The adapter's list, which is what is on screen while a diff is pending
+            ((Callback) getActivity()).onItemSelected(new ArrayList<>(mTrackAdapter.getTracks()), position);
+        }
+
+        @Override
+        public void onItemLongPress(View childView, int position) {
+            enqueueTrack(mTrackAdapter.getTracks().get(position));
+        }
+
+        @Override
+        public void onItemPressed(View childView, int position) {
+            ((Callback) getActivity()).onItemPressed(mTrackAdapter.getTracks().get(position));
+        }
+
+        @Override
+        public void onItemPressCanceled(View childView, int position) {
+            ((Callback) getActivity()).onItemPressCanceled();
         }
     }
 
+    private void makeAvailableOffline() {
+        List<TrackItem> tracks = mTrackAdapter.getTracks();
+        if (tracks.isEmpty()) {
+            return;
+        }
+        DownloadService.download(getActivity(), new ArrayList<>(tracks));
+        Toast.makeText(getActivity(), getString(R.string.message_downloading, tracks.size()),
+                Toast.LENGTH_SHORT).show();
+    }
+
+    private void enqueueTrack(TrackItem track) {
+        ArrayList<TrackItem> tracks = new ArrayList<>(1);
+        tracks.add(track);
+        Intent intent = new Intent(getActivity(), MusicService.class);
+        intent.setAction(MusicService.ACTION_CMD);
+        intent.putExtra(MusicService.CMD_NAME, MusicService.CMD_ENQUEUE);
+        intent.putParcelableArrayListExtra(PlayerFragment.KEY_TRACKS, tracks);
+        getActivity().startService(intent);
+        Toast.makeText(getActivity(), getString(R.string.message_enqueued, track.name),
+                Toast.LENGTH_SHORT).show();
+    }
+
     public class FetchTopTracksTask extends AsyncTask<Void, Void, Void> {
 
         private String mCountry;
@@ -133,10 +198,18 @@ public class TopTracksFragment extends Fragment {
 
         @Override
         protected Void doInBackground(Void... params) {
+            // Joins a prefetch that is still in flight rather than starting a second request
+            List<Track> tracks = mPrefetcher.get(mArtist.id, mCountry);
+            if (tracks != null) {
+                mTrackList = TrackItem.fromTracks(tracks);
+                return null;
+            }
             Map<String,Object> options = new HashMap<>();
             options.put("country", mCountry);
             try {
-                mTrackList = mSpotifyService.getArtistTopTrack(mArtist.id, options).tracks;
+                tracks = mSpotifyService.getArtistTopTrack(mArtist.id, options).tracks;
+                mPrefetcher.put(mArtist.id, mCountry, tracks);
+                mTrackList = TrackItem.fromTracks(tracks);
             } catch (RetrofitError e) {
                 Log.e(LOG_TAG, "An error occurred when attempting to retrieve tracks");
             }
@@ -146,7 +219,7 @@ public class TopTracksFragment extends Fragment {
         @Override
         protected void onPostExecute(Void aVoid) {
             if (!updateTrackAdapter(mTrackList)) {
-                mRecyclerView.setAdapter(new TrackAdapter(new ArrayList<Track>()));
+                mTrackAdapter.setTracks(new ArrayList<TrackItem>());
                 Toast.makeText(getActivity(), "Sorry, no tracks found.", Toast.LENGTH_SHORT).show();
             }
         }
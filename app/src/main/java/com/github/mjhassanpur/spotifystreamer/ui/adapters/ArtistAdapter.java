@@ -2,6 +2,7 @@ package com.github.mjhassanpur.spotifystreamer.ui.adapters;
 
 import android.content.Context;
 import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -10,13 +11,11 @@ import android.widget.TextView;
 
 import com.bumptech.glide.Glide;
 import com.github.mjhassanpur.spotifystreamer.R;
+import com.github.mjhassanpur.spotifystreamer.model.ArtistItem;
 
 import java.util.ArrayList;
 import java.util.List;
 
-import kaaes.spotify.webapi.android.models.Artist;
-import kaaes.spotify.webapi.android.models.Image;
-
 /**
  * A custom RecyclerView adapter for holding artists
  *
@@ -25,43 +24,110 @@ import kaaes.spotify.webapi.android.models.Image;
 public class ArtistAdapter extends RecyclerView.Adapter<ArtistAdapter.ViewHolder> {
 
     private Context mContext;
-    private ArrayList<Artist> mArtists;
+    private int mImageSize;
+    private final ListDiffer<ArtistItem> mDiffer;
+    private OnBindListener mOnBindListener;
+    private OnPlayListener mOnPlayListener;
+
+    /**
+     * Notified whenever an artist is bound to a view, i.e. is about to be shown.
+     */
+    public interface OnBindListener {
+        void onBind(ArtistItem artist, int position);
+    }
+
+    /**
+     * Notified when the play button of an artist is clicked.
+     */
+    public interface OnPlayListener {
+        void onPlay(ArtistItem artist);
+    }
 
     public static class ViewHolder extends RecyclerView.ViewHolder {
         private ImageView mImageView;
         private TextView mTextView;
+        private View mPlayButton;
         public ViewHolder(View v) {
             super(v);
             mImageView = (ImageView) v.findViewById(R.id.list_item_artist_image);
             mTextView = (TextView) v.findViewById(R.id.list_item_artist_name);
+            mPlayButton = v.findViewById(R.id.list_item_artist_play);
         }
     }
 
-    public ArtistAdapter(ArrayList<Artist> artistList) {
-        mArtists = artistList;
+    public ArtistAdapter(ArrayList<ArtistItem> artistList) {
+        mDiffer = new ListDiffer<>(this, new ListDiffer.ItemCallback<ArtistItem>() {
+            @Override
+            public String getId(ArtistItem artist) {
+                return artist.id;
+            }
+
+            @Override
+            public boolean areContentsTheSame(ArtistItem oldArtist, ArtistItem newArtist) {
+                return TextUtils.equals(oldArtist.name, newArtist.name)
+                        && TextUtils.equals(oldArtist.imageUrl, newArtist.imageUrl);
+            }
+        });
+        mDiffer.submitList(artistList);
+    }
+
+    /**
+     * Replaces the artists, rebinding only the rows that changed.
+     */
+    public void setArtists(List<ArtistItem> artists) {
+        mDiffer.submitList(artists);
+    }
+
+    /**
+     * Appends the artists, e.g. the next page of results, binding only the new rows.
+     */
+    public void addArtists(List<ArtistItem> artists) {
+        mDiffer.addAll(artists);
+    }
+
+    public ArtistItem getArtist(int position) {
+        return mDiffer.getItems().get(position);
+    }
+
+    public void setOnBindListener(OnBindListener listener) {
+        mOnBindListener = listener;
+    }
+
+    public void setOnPlayListener(OnPlayListener listener) {
+        mOnPlayListener = listener;
     }
 
     @Override
     public ArtistAdapter.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         mContext = parent.getContext();
+        mImageSize = mContext.getResources().getDimensionPixelSize(R.dimen.list_item_image_size);
         View v = LayoutInflater.from(mContext).inflate(R.layout.list_item_artist, parent, false);
-        return new ViewHolder(v);
+        final ViewHolder holder = new ViewHolder(v);
+        holder.mPlayButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                int position = holder.getAdapterPosition();
+                if (mOnPlayListener != null && position != RecyclerView.NO_POSITION) {
+                    mOnPlayListener.onPlay(getArtist(position));
+                }
+            }
+        });
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
-        Artist artist = mArtists.get(position);
+        ArtistItem artist = getArtist(position);
         holder.mTextView.setText(artist.name);
-        String url = null;
-        List<Image> images = artist.images;
-        if (images != null && !images.isEmpty()) {
-            url = images.get(0).url;
+        holder.mPlayButton.setVisibility(mOnPlayListener != null ? View.VISIBLE : View.GONE);
+        Glide.with(mContext).load(artist.images.getUrl(mImageSize)).error(R.drawable.default_profile_image).into(holder.mImageView);
+        if (mOnBindListener != null) {
+            mOnBindListener.onBind(artist, position);
         }
-        Glide.with(mContext).load(url).error(R.drawable.default_profile_image).into(holder.mImageView);
     }
 
     @Override
     public int getItemCount() {
-        return mArtists.size();
+        return mDiffer.getItems().size();
     }
 }
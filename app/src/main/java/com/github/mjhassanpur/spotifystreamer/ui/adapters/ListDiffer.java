@@ -0,0 +1,280 @@
+package com.github.mjhassanpur.spotifystreamer.ui.adapters;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Holds the items of a RecyclerView adapter and updates them by diffing the new list
+ * against the current one, keyed by ID, so that only the rows that were removed,
+ * inserted, moved or changed are rebound. The diff is computed on a background thread.
+ *
+ * Items that keep their place relative to each other (the longest run in increasing
+ * order) are never moved, so e.g. moving one item to the end of the list is a single move.
+ *
+ * The lists are never modified in place, since a diff may be reading them.
+ */
+public class ListDiffer<T> {
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    static final int REMOVE = 0;
+    static final int INSERT = 1;
+    static final int MOVE = 2;
+    static final int CHANGE = 3;
+
+    private final RecyclerView.Adapter<?> mAdapter;
+    private final ItemCallback<T> mCallback;
+    private List<T> mItems = Collections.emptyList();
+    // The list being diffed, if any
+    private List<T> mPendingItems;
+    private int mGeneration;
+
+    public interface ItemCallback<T> {
+        /**
+         * @return the ID of the item, e.g. its Spotify ID
+         */
+        String getId(T item);
+
+        /**
+         * @return whether the row showing the old item would look the same for the new one
+         */
+        boolean areContentsTheSame(T oldItem, T newItem);
+    }
+
+    public ListDiffer(RecyclerView.Adapter<?> adapter, ItemCallback<T> callback) {
+        mAdapter = adapter;
+        mCallback = callback;
+    }
+
+    public List<T> getItems() {
+        return mItems;
+    }
+
+    /**
+     * Replaces the items, notifying the adapter of the difference once it is computed.
+     * Must be called on the main thread.
+     */
+    public void submitList(List<T> items) {
+        final int generation = ++mGeneration;
+        final List<T> oldItems = mItems;
+        final List<T> newItems = Collections.unmodifiableList(new ArrayList<>(items));
+        if (oldItems.isEmpty() || newItems.isEmpty()) {
+            mPendingItems = null;
+            mItems = newItems;
+            if (!oldItems.isEmpty()) {
+                mAdapter.notifyItemRangeRemoved(0, oldItems.size());
+            }
+            if (!newItems.isEmpty()) {
+                mAdapter.notifyItemRangeInserted(0, newItems.size());
+            }
+            return;
+        }
+        mPendingItems = newItems;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int[] operations = diff(oldItems, newItems);
+                sHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            // Superseded by a later list
+                            return;
+                        }
+                        mPendingItems = null;
+                        mItems = newItems;
+                        dispatch(operations);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Appends the items, e.g. the next page of results. Must be called on the main thread.
+     */
+    public void addAll(List<T> items) {
+        if (mPendingItems != null) {
+            List<T> pending = new ArrayList<>(mPendingItems);
+            pending.addAll(items);
+            submitList(pending);
+            return;
+        }
+        ++mGeneration;
+        int start = mItems.size();
+        List<T> newItems = new ArrayList<>(mItems);
+        newItems.addAll(items);
+        mItems = Collections.unmodifiableList(newItems);
+        mAdapter.notifyItemRangeInserted(start, items.size());
+    }
+
+    private void dispatch(int[] operations) {
+        if (operations == null) {
+            mAdapter.notifyDataSetChanged();
+            return;
+        }
+        for (int i = 0; i < operations.length; i += 3) {
+            switch (operations[i]) {
+                case REMOVE:
+                    mAdapter.notifyItemRemoved(operations[i + 1]);
+                    break;
+                case INSERT:
+                    mAdapter.notifyItemInserted(operations[i + 1]);
+                    break;
+                case MOVE:
+                    mAdapter.notifyItemMoved(operations[i + 1], operations[i + 2]);
+                    break;
+                case CHANGE:
+                    mAdapter.notifyItemChanged(operations[i + 1]);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the operations turning the old list into the new one, as (type, position,
+     * target) triples to be applied in order, or null if the IDs aren't unique
+     */
+    int[] diff(List<T> oldItems, List<T> newItems) {
+        Map<String, Integer> newIndex = indexById(newItems);
+        Map<String, Integer> oldIndex = indexById(oldItems);
+        if (newIndex == null || oldIndex == null) {
+            return null;
+        }
+        List<Integer> operations = new ArrayList<>();
+
+        // Removals, from the end so that the positions still hold
+        List<String> current = new ArrayList<>(oldItems.size());
+        for (int i = oldItems.size() - 1; i >= 0; i--) {
+            String id = mCallback.getId(oldItems.get(i));
+            if (newIndex.containsKey(id)) {
+                current.add(id);
+            } else {
+                add(operations, REMOVE, i, 0);
+            }
+        }
+        Collections.reverse(current);
+
+        // Moves, leaving the longest increasing run of target positions in place
+        int count = current.size();
+        int[] targets = new int[count];
+        for (int i = 0; i < count; i++) {
+            targets[i] = newIndex.get(current.get(i));
+        }
+        boolean[] placed = longestIncreasingRun(targets);
+        String[] byTarget = new String[newItems.size()];
+        for (int i = 0; i < count; i++) {
+            byTarget[targets[i]] = current.get(i);
+        }
+        // The placed item with the highest target below the one being moved, by target
+        String[] placedIds = new String[newItems.size()];
+        for (int i = 0; i < count; i++) {
+            if (placed[i]) {
+                placedIds[targets[i]] = current.get(i);
+            }
+        }
+        for (int target = 0; target < byTarget.length; target++) {
+            String id = byTarget[target];
+            if (id == null || placedIds[target] != null) {
+                continue;
+            }
+            int from = current.indexOf(id);
+            current.remove(from);
+            int to = 0;
+            for (int t = target - 1; t >= 0; t--) {
+                if (placedIds[t] != null) {
+                    to = current.indexOf(placedIds[t]) + 1;
+                    break;
+                }
+            }
+            current.add(to, id);
+            placedIds[target] = id;
+            if (from != to) {
+                add(operations, MOVE, from, to);
+            }
+        }
+
+        // Insertions, in order, now that the surviving items are in their final order
+        for (int i = 0; i < newItems.size(); i++) {
+            if (!oldIndex.containsKey(mCallback.getId(newItems.get(i)))) {
+                add(operations, INSERT, i, 0);
+            }
+        }
+
+        // Changes, at the final positions
+        for (int i = 0; i < newItems.size(); i++) {
+            T newItem = newItems.get(i);
+            Integer oldPosition = oldIndex.get(mCallback.getId(newItem));
+            if (oldPosition != null && !mCallback.areContentsTheSame(oldItems.get(oldPosition), newItem)) {
+                add(operations, CHANGE, i, 0);
+            }
+        }
+
+        int[] result = new int[operations.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = operations.get(i);
+        }
+        return result;
+    }
+
+    private Map<String, Integer> indexById(List<T> items) {
+        Map<String, Integer> index = new HashMap<>(items.size() * 2);
+        for (int i = 0, n = items.size(); i < n; i++) {
+            String id = mCallback.getId(items.get(i));
+            if (id == null || index.put(id, i) != null) {
+                return null;
+            }
+        }
+        return index;
+    }
+
+    private static void add(List<Integer> operations, int type, int position, int target) {
+        operations.add(type);
+        operations.add(position);
+        operations.add(target);
+    }
+
+    /**
+     * @return which of the values form a longest strictly increasing subsequence, found
+     * in O(n log n)
+     */
+    private static boolean[] longestIncreasingRun(int[] values) {
+        int n = values.length;
+        // tails[k] is the index of the smallest tail of an increasing run of length k + 1
+        int[] tails = new int[n];
+        int[] previous = new int[n];
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[tails[mid]] < values[i]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+        boolean[] inRun = new boolean[n];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+            inRun[i] = true;
+        }
+        return inRun;
+    }
+}
@@ -2,6 +2,7 @@ package com.github.mjhassanpur.spotifystreamer.ui.adapters;
 
 import android.content.Context;
 import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -10,13 +11,11 @@ import android.widget.TextView;
 
 import com.bumptech.glide.Glide;
 import com.github.mjhassanpur.spotifystreamer.R;
+import com.github.mjhassanpur.spotifystreamer.model.TrackItem;
 
 import java.util.ArrayList;
 import java.util.List;
 
-import kaaes.spotify.webapi.android.models.Image;
-import kaaes.spotify.webapi.android.models.Track;
-
 /**
  * A custom RecyclerView adapter for holding tracks
  *
@@ -25,7 +24,8 @@ import kaaes.spotify.webapi.android.models.Track;
 public class TrackAdapter extends RecyclerView.Adapter<TrackAdapter.ViewHolder> {
 
     private Context mContext;
-    private ArrayList<Track> mTracks;
+    private int mImageSize;
+    private final ListDiffer<TrackItem> mDiffer;
 
     public static class ViewHolder extends RecyclerView.ViewHolder {
         private ImageView mAlbumImageView;
@@ -39,32 +39,55 @@ public class TrackAdapter extends RecyclerView.Adapter<TrackAdapter.ViewHolder>
         }
     }
 
-    public TrackAdapter(ArrayList<Track> trackList) {
-        mTracks = trackList;
+    public TrackAdapter(ArrayList<TrackItem> trackList) {
+        mDiffer = new ListDiffer<>(this, new ListDiffer.ItemCallback<TrackItem>() {
+            @Override
+            public String getId(TrackItem track) {
+                return track.id;
+            }
+
+            @Override
+            public boolean areContentsTheSame(TrackItem oldTrack, TrackItem newTrack) {
+                return TextUtils.equals(oldTrack.name, newTrack.name)
+                        && TextUtils.equals(oldTrack.albumName, newTrack.albumName)
+                        && TextUtils.equals(oldTrack.albumArtUrl, newTrack.albumArtUrl);
+            }
+        });
+        mDiffer.submitList(trackList);
+    }
+
+    /**
+     * Replaces the tracks, rebinding only the rows that changed.
+     */
+    public void setTracks(List<TrackItem> tracks) {
+        mDiffer.submitList(tracks);
+    }
+
+    /**
+     * @return the tracks as shown, which may lag behind the last setTracks while it is diffed
+     */
+    public List<TrackItem> getTracks() {
+        return mDiffer.getItems();
     }
 
     @Override
     public TrackAdapter.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         mContext = parent.getContext();
+        mImageSize = mContext.getResources().getDimensionPixelSize(R.dimen.list_item_image_size);
         View v = LayoutInflater.from(mContext).inflate(R.layout.list_item_track, parent, false);
         return new ViewHolder(v);
     }
 
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
-        Track track = mTracks.get(position);
+        TrackItem track = mDiffer.getItems().get(position);
         holder.mTrackTextView.setText(track.name);
-        holder.mAlbumTextView.setText(track.album.name);
-        String url = null;
-        List<Image> images = track.album.images;
-        if (images != null && !images.isEmpty()) {
-            url = images.get(0).url;
-        }
-        Glide.with(mContext).load(url).error(R.drawable.default_album_image).into(holder.mAlbumImageView);
+        holder.mAlbumTextView.setText(track.albumName);
+        Glide.with(mContext).load(track.albumArt.getUrl(mImageSize)).error(R.drawable.default_album_image).into(holder.mAlbumImageView);
     }
 
     @Override
     public int getItemCount() {
-        return mTracks.size();
+        return mDiffer.getItems().size();
     }
 }
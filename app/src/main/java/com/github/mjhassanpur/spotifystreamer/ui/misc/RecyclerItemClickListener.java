@@ -2,13 +2,16 @@ package com.github.mjhassanpur.spotifystreamer.ui.misc;
 
 import android.content.Context;
 import android.support.annotation.Nullable;
+import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.RecyclerView;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewGroup;
 
 /**
- * Used for listening to RecyclerView item clicks.
+ * Used for listening to RecyclerView item clicks. Touches on clickable views inside an
+ * item, e.g. buttons, are left to those views.
  *
  * @see <a href="https://gist.github.com/lnikkila/d9493a0626e89059c6aa">ReyclerItemClickListener</a>
  */
@@ -23,6 +26,15 @@ public class RecyclerItemClickListener implements RecyclerView.OnItemTouchListen
 
     private int childViewPosition;
 
+    // The item reported by onItemPressed, until the press ends in a click or is canceled
+    @Nullable
+    private View pressedView;
+
+    private int pressedViewPosition;
+
+    // Whether the current gesture started on a clickable view inside an item
+    private boolean ignoringGesture;
+
     public RecyclerItemClickListener(Context context, OnItemClickListener listener) {
         this.gestureDetector = new GestureDetector(context, new GestureListener());
         this.listener = listener;
@@ -30,15 +42,63 @@ public class RecyclerItemClickListener implements RecyclerView.OnItemTouchListen
 
     @Override
     public boolean onInterceptTouchEvent(RecyclerView view, MotionEvent event) {
+        return handleTouchEvent(view, event);
+    }
+
+    @Override
+    public void onTouchEvent(RecyclerView view, MotionEvent event) {
+        // Once intercepted, the rest of the gesture arrives here
+        handleTouchEvent(view, event);
+    }
+
+    private boolean handleTouchEvent(RecyclerView view, MotionEvent event) {
         childView = view.findChildViewUnder(event.getX(), event.getY());
         childViewPosition = view.getChildPosition(childView);
 
-        return childView != null && gestureDetector.onTouchEvent(event);
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+            ignoringGesture = childView instanceof ViewGroup && isOverClickableView((ViewGroup) childView,
+                    event.getX() - childView.getLeft() - ViewCompat.getTranslationX(childView),
+                    event.getY() - childView.getTop() - ViewCompat.getTranslationY(childView));
+        }
+        if (ignoringGesture) {
+            return false;
+        }
+
+        boolean handled = childView != null && gestureDetector.onTouchEvent(event);
+        int action = event.getActionMasked();
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            // A click has already cleared the press
+            cancelPress();
+        }
+        return handled;
     }
 
-    @Override
-    public void onTouchEvent(RecyclerView view, MotionEvent event) {
-        // Not needed.
+    /**
+     * @return whether the point, relative to the group, is over a clickable descendant of it
+     */
+    private static boolean isOverClickableView(ViewGroup group, float x, float y) {
+        for (int i = group.getChildCount() - 1; i >= 0; i--) {
+            View child = group.getChildAt(i);
+            float childX = x - child.getLeft() - ViewCompat.getTranslationX(child);
+            float childY = y - child.getTop() - ViewCompat.getTranslationY(child);
+            if (child.getVisibility() != View.VISIBLE || childX < 0 || childY < 0
+                    || childX >= child.getWidth() || childY >= child.getHeight()) {
+                continue;
+            }
+            if (child.isClickable() || (child instanceof ViewGroup
+                    && isOverClickableView((ViewGroup) child, childX, childY))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void cancelPress() {
+        if (pressedView != null) {
+            View view = pressedView;
+            pressedView = null;
+            listener.onItemPressCanceled(view, pressedViewPosition);
+        }
     }
 
     @Override
@@ -67,6 +127,25 @@ public class RecyclerItemClickListener implements RecyclerView.OnItemTouchListen
          */
         public void onItemLongPress(View childView, int position);
 
+        /**
+         * Called when an item has been touched long enough to show it as pressed, so
+         * the touch is likely a tap rather than the start of a scroll. It is followed by
+         * either {@link #onItemClick} or {@link #onItemPressCanceled}.
+         *
+         * @param childView View of the item that was pressed.
+         * @param position  Position of the item that was pressed.
+         */
+        public void onItemPressed(View childView, int position);
+
+        /**
+         * Called when a press ends without a click, e.g. because the list was scrolled
+         * or the item was long pressed.
+         *
+         * @param childView View of the item that was pressed.
+         * @param position  Position of the item that was pressed.
+         */
+        public void onItemPressCanceled(View childView, int position);
+
     }
 
     /**
@@ -94,6 +173,26 @@ public class RecyclerItemClickListener implements RecyclerView.OnItemTouchListen
             // Do nothing.
         }
 
+        /**
+         * Called when an item is pressed. The default implementation is a no-op.
+         *
+         * @param childView View of the item that was pressed.
+         * @param position  Position of the item that was pressed.
+         */
+        public void onItemPressed(View childView, int position) {
+            // Do nothing.
+        }
+
+        /**
+         * Called when a press ends without a click. The default implementation is a no-op.
+         *
+         * @param childView View of the item that was pressed.
+         * @param position  Position of the item that was pressed.
+         */
+        public void onItemPressCanceled(View childView, int position) {
+            // Do nothing.
+        }
+
     }
 
     protected class GestureListener extends GestureDetector.SimpleOnGestureListener {
@@ -101,14 +200,31 @@ public class RecyclerItemClickListener implements RecyclerView.OnItemTouchListen
         @Override
         public boolean onSingleTapUp(MotionEvent event) {
             if (childView != null) {
+                pressedView = null;
                 listener.onItemClick(childView, childViewPosition);
             }
 
             return true;
         }
 
+        @Override
+        public void onShowPress(MotionEvent event) {
+            if (childView != null) {
+                pressedView = childView;
+                pressedViewPosition = childViewPosition;
+                listener.onItemPressed(childView, childViewPosition);
+            }
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            cancelPress();
+            return false;
+        }
+
         @Override
         public void onLongPress(MotionEvent event) {
+            cancelPress();
             if (childView != null) {
                 listener.onItemLongPress(childView, childViewPosition);
             }
@@ -0,0 +1,161 @@
+package com.github.mjhassanpur.spotifystreamer.utils;
+
+import android.support.v4.media.session.MediaSessionCompat.QueueItem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of queue items that also maps media IDs and queue IDs to their index, so that
+ * lookups take constant time however long the queue is. The maps are kept up to date
+ * as items are inserted, removed and moved, touching only the indices that shift.
+ *
+ * If a media ID occurs more than once, lookups by media ID return its first occurrence.
+ */
+public class IndexedQueue {
+
+    private final List<QueueItem> mItems = new ArrayList<>();
+    private final Map<String, Integer> mIndexByMediaId = new HashMap<>();
+    private final Map<Long, Integer> mIndexByQueueId = new HashMap<>();
+
+    public IndexedQueue() {
+    }
+
+    public IndexedQueue(Iterable<QueueItem> items) {
+        for (QueueItem item : items) {
+            add(item);
+        }
+    }
+
+    public int size() {
+        return mItems.size();
+    }
+
+    public boolean isEmpty() {
+        return mItems.isEmpty();
+    }
+
+    public QueueItem get(int index) {
+        return mItems.get(index);
+    }
+
+    /**
+     * @return an unmodifiable view of the items, e.g. for MediaSessionCompat.setQueue
+     */
+    public List<QueueItem> asList() {
+        return Collections.unmodifiableList(mItems);
+    }
+
+    /**
+     * @return the index of the first item with the given media ID, or -1 if there is none
+     */
+    public int indexOf(String mediaId) {
+        Integer index = mIndexByMediaId.get(mediaId);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return the index of the item with the given queue ID, or -1 if there is none
+     */
+    public int indexOf(long queueId) {
+        Integer index = mIndexByQueueId.get(queueId);
+        return index == null ? -1 : index;
+    }
+
+    public void add(QueueItem item) {
+        add(mItems.size(), item);
+    }
+
+    public void add(int index, QueueItem item) {
+        if (mIndexByQueueId.containsKey(item.getQueueId())) {
+            throw new IllegalArgumentException("Duplicate queue ID " + item.getQueueId());
+        }
+        mItems.add(index, item);
+        reindex(index + 1, mItems.size() - 1, 1);
+        mIndexByQueueId.put(item.getQueueId(), index);
+        String mediaId = getMediaId(item);
+        Integer first = mIndexByMediaId.get(mediaId);
+        if (first == null || first > index) {
+            mIndexByMediaId.put(mediaId, index);
+        }
+    }
+
+    public QueueItem remove(int index) {
+        QueueItem item = mItems.remove(index);
+        mIndexByQueueId.remove(item.getQueueId());
+        String mediaId = getMediaId(item);
+        boolean wasFirst = mIndexByMediaId.get(mediaId) == index;
+        if (wasFirst) {
+            mIndexByMediaId.remove(mediaId);
+        }
+        reindex(index, mItems.size() - 1, -1);
+        if (wasFirst) {
+            // A later duplicate, if there is one, is now the first occurrence
+            for (int i = index, n = mItems.size(); i < n; i++) {
+                if (mediaId.equals(getMediaId(mItems.get(i)))) {
+                    mIndexByMediaId.put(mediaId, i);
+                    break;
+                }
+            }
+        }
+        return item;
+    }
+
+    public void move(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        mItems.add(to, mItems.remove(from));
+        int start = Math.min(from, to);
+        int end = Math.max(from, to);
+        // Only the items in [start, end] changed places. A media ID first seen before
+        // start keeps its index; one first seen in the range gets the lowest index it
+        // has in the range now.
+        for (int i = start; i <= end; i++) {
+            QueueItem item = mItems.get(i);
+            mIndexByQueueId.put(item.getQueueId(), i);
+            String mediaId = getMediaId(item);
+            Integer first = mIndexByMediaId.get(mediaId);
+            if (first != null && first >= start) {
+                mIndexByMediaId.remove(mediaId);
+            }
+        }
+        for (int i = start; i <= end; i++) {
+            String mediaId = getMediaId(mItems.get(i));
+            if (!mIndexByMediaId.containsKey(mediaId)) {
+                mIndexByMediaId.put(mediaId, i);
+            }
+        }
+    }
+
+    public void clear() {
+        mItems.clear();
+        mIndexByMediaId.clear();
+        mIndexByQueueId.clear();
+    }
+
+    /**
+     * Updates the indices of the items in [start, end] after they shifted by delta (1 or -1)
+     * in the list. Items are visited in the order they shifted in, so that a media ID whose
+     * first occurrence was already updated can't be mistaken for a later duplicate.
+     */
+    private void reindex(int start, int end, int delta) {
+        for (int k = start; k <= end; k++) {
+            int i = delta > 0 ? end - (k - start) : k;
+            QueueItem item = mItems.get(i);
+            mIndexByQueueId.put(item.getQueueId(), i);
+            String mediaId = getMediaId(item);
+            Integer first = mIndexByMediaId.get(mediaId);
+            if (first != null && first == i - delta) {
+                mIndexByMediaId.put(mediaId, i);
+            }
+        }
+    }
+
+    private static String getMediaId(QueueItem item) {
+        return item.getDescription().getMediaId();
+    }
+}
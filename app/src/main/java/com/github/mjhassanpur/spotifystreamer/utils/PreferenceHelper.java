@@ -18,4 +18,11 @@ public class PreferenceHelper {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getBoolean(context.getString(R.string.pref_key_notifications), true);
     }
+
+    public static long getAudioCacheSize(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String size = prefs.getString(context.getString(R.string.pref_key_cache_size),
+                context.getString(R.string.pref_cache_size_default));
+        return Long.parseLong(size);
+    }
 }
@@ -16,13 +16,11 @@
 
 package com.github.mjhassanpur.spotifystreamer.utils;
 
-import android.support.v4.media.MediaMetadataCompat;
+import android.net.Uri;
+import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 
-import com.github.mjhassanpur.spotifystreamer.media.MediaProvider;
-
-import java.util.ArrayList;
-import java.util.List;
+import com.github.mjhassanpur.spotifystreamer.model.TrackItem;
 
 /**
  * Utility class to help on queue related tasks.
@@ -33,52 +31,30 @@ public class QueueHelper {
 
     private static final String TAG = LogHelper.makeLogTag(QueueHelper.class);
 
-    public static List<MediaSessionCompat.QueueItem> getPlayingQueue(MediaProvider mediaProvider) {
-        Iterable<MediaMetadataCompat> tracks = mediaProvider.getMusicList();
-
-        if (tracks == null) {
-            LogHelper.e(TAG, "Unable to get playing queue");
-            return null;
-        }
-        return convertToQueue(tracks);
+    public static int getMediaIndexOnQueue(IndexedQueue queue, String mediaId) {
+        return queue.indexOf(mediaId);
     }
 
-    public static int getMediaIndexOnQueue(Iterable<MediaSessionCompat.QueueItem> queue, String mediaId) {
-        int index = 0;
-        for (MediaSessionCompat.QueueItem item : queue) {
-            if (mediaId.equals(item.getDescription().getMediaId())) {
-                return index;
-            }
-            index++;
-        }
-        return -1;
+    public static int getMediaIndexOnQueue(IndexedQueue queue, long queueId) {
+        return queue.indexOf(queueId);
     }
 
-    public static int getMediaIndexOnQueue(Iterable<MediaSessionCompat.QueueItem> queue, long queueId) {
-        int index = 0;
-        for (MediaSessionCompat.QueueItem item : queue) {
-            if (queueId == item.getQueueId()) {
-                return index;
-            }
-            index++;
-        }
-        return -1;
-    }
-
-    private static List<MediaSessionCompat.QueueItem> convertToQueue( Iterable<MediaMetadataCompat> tracks) {
-        List<MediaSessionCompat.QueueItem> queue = new ArrayList<>();
-        int count = 0;
-        for (MediaMetadataCompat track : tracks) {
-            // We don't expect queues to change after created, so we use the item index as the
-            // queueId. Any other number unique in the queue would work.
-            MediaSessionCompat.QueueItem item = new MediaSessionCompat.QueueItem(track.getDescription(), count++);
-            queue.add(item);
-        }
-        return queue;
-
+    /**
+     * Creates a queue item straight from the track, without building its full metadata.
+     * Queue IDs must stay unique for as long as the item is in the queue, since items
+     * can be inserted, removed and moved; an index would not do.
+     */
+    public static MediaSessionCompat.QueueItem createQueueItem(TrackItem track, long queueId) {
+        MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(track.id)
+                .setTitle(track.name)
+                .setSubtitle(track.artistName)
+                .setIconUri(track.albumArtUrl != null ? Uri.parse(track.albumArtUrl) : null)
+                .build();
+        return new MediaSessionCompat.QueueItem(description, queueId);
     }
 
-    public static boolean isIndexPlayable(int index, List<MediaSessionCompat.QueueItem> queue) {
+    public static boolean isIndexPlayable(int index, IndexedQueue queue) {
         return (queue != null && index >= 0 && index < queue.size());
     }
 }
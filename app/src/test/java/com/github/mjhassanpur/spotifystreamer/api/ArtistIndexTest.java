@@ -0,0 +1,102 @@
+package com.github.mjhassanpur.spotifystreamer.api;
+
+import com.github.mjhassanpur.spotifystreamer.model.ArtistItem;
+import com.github.mjhassanpur.spotifystreamer.model.ImageVariants;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ArtistIndexTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ArtistIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mIndex = new ArtistIndex(new File(mFolder.getRoot(), "artist_index"));
+    }
+
+    @Test
+    public void lookupReturnsEveryArtistWithADuplicatedName() {
+        List<ArtistItem> artists = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            artists.add(artist("same" + i, "The Band"));
+        }
+        artists.add(artist("other", "The Bangles"));
+        mIndex.addAll(artists);
+
+        List<String> ids = ids(mIndex.lookup("the band", 20));
+
+        assertEquals(9, ids.size());
+        for (int i = 0; i < 9; i++) {
+            assertTrue(ids.contains("same" + i));
+        }
+    }
+
+    @Test
+    public void lookupReturnsEveryArtistWithADuplicatedWord() {
+        mIndex.addAll(Arrays.asList(
+                artist("a", "The Band"),
+                artist("b", "Big Band"),
+                artist("c", "Brass Band"),
+                artist("d", "Band of Horses"),
+                artist("e", "Bandits")));
+
+        List<String> ids = ids(mIndex.lookup("band", 20));
+
+        // Matches on the start of the name come first
+        assertEquals(5, ids.size());
+        assertTrue(ids.subList(0, 2).containsAll(Arrays.asList("d", "e")));
+        assertTrue(ids.subList(2, 5).containsAll(Arrays.asList("a", "b", "c")));
+    }
+
+    @Test
+    public void lookupListsAnArtistOnce() {
+        mIndex.addAll(Arrays.asList(artist("a", "Band Band")));
+
+        assertEquals(Arrays.asList("a"), ids(mIndex.lookup("band", 20)));
+    }
+
+    @Test
+    public void lookupRespectsTheLimit() {
+        mIndex.addAll(Arrays.asList(
+                artist("a", "Band"),
+                artist("b", "Band"),
+                artist("c", "Band")));
+
+        assertEquals(2, mIndex.lookup("band", 2).size());
+    }
+
+    @Test
+    public void lookupIgnoresCaseAndSurroundingSpace() {
+        mIndex.addAll(Arrays.asList(artist("a", "Radiohead")));
+
+        assertEquals(Arrays.asList("a"), ids(mIndex.lookup("  RADIO ", 20)));
+        assertTrue(mIndex.lookup("   ", 20).isEmpty());
+        assertTrue(mIndex.lookup("radios", 20).isEmpty());
+    }
+
+    private static ArtistItem artist(String id, String name) {
+        return new ArtistItem(id, name, ImageVariants.EMPTY);
+    }
+
+    private static List<String> ids(List<ArtistItem> artists) {
+        List<String> ids = new ArrayList<>();
+        for (ArtistItem artist : artists) {
+            ids.add(artist.id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.mjhassanpur.spotifystreamer.media;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AudioCacheTest {
+
+    private static final int PREVIEW_LENGTH = 100;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private AudioCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mCache = new AudioCache(null, mFolder.newFolder("previews")) {
+            @Override
+            long getMaxSize() {
+                return Long.MAX_VALUE;
+            }
+        };
+    }
+
+    @Test
+    public void getKeepsAnEntryFromBeingEvicted() throws IOException {
+        put("a");
+        put("b");
+        put("c");
+
+        assertNotNull(mCache.get("a"));
+        mCache.trimToSize(2 * PREVIEW_LENGTH);
+
+        assertNotNull(mCache.get("a"));
+        assertNull(mCache.get("b"));
+        assertNotNull(mCache.get("c"));
+    }
+
+    @Test
+    public void containsDoesntCountAsAUse() throws IOException {
+        put("a");
+        put("b");
+
+        assertTrue(mCache.contains("a"));
+        mCache.trimToSize(PREVIEW_LENGTH);
+
+        assertFalse(mCache.contains("a"));
+        assertTrue(mCache.contains("b"));
+    }
+
+    private void put(String mediaId) throws IOException {
+        File partial = mCache.getPartialFile(mediaId);
+        OutputStream out = new FileOutputStream(partial);
+        try {
+            out.write(new byte[PREVIEW_LENGTH]);
+        } finally {
+            out.close();
+        }
+        mCache.put(mediaId, partial);
+    }
+}
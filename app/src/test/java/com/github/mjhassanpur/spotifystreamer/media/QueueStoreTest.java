@@ -0,0 +1,113 @@
+package com.github.mjhassanpur.spotifystreamer.media;
+
+import com.github.mjhassanpur.spotifystreamer.model.ImageVariants;
+import com.github.mjhassanpur.spotifystreamer.model.TrackItem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class QueueStoreTest {
+
+    private static final ImageVariants ALBUM_ART =
+            ImageVariants.decode("64 http://i/small\n300 http://i/medium\n640 http://i/large");
+
+    @Test
+    public void readTrackReversesWriteTrack() throws IOException {
+        TrackItem track = new TrackItem("id", "Name", "album", "Album", ALBUM_ART,
+                "http://p/preview", "Artist", "http://e/track");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // Twice, to check that reading leaves the stream at the start of the next track
+        QueueStore.writeTrack(out, track);
+        QueueStore.writeTrack(out, track);
+        DataInputStream in = read(bytes);
+
+        for (int i = 0; i < 2; i++) {
+            TrackItem read = QueueStore.readTrack(in, 3);
+            assertEquals("id", read.id);
+            assertEquals("Name", read.name);
+            assertEquals("album", read.albumId);
+            assertEquals("Album", read.albumName);
+            assertEquals(ALBUM_ART.getUrls(), read.albumArt.getUrls());
+            assertEquals("http://i/medium", read.albumArt.getUrl(100));
+            assertEquals("http://p/preview", read.previewUrl);
+            assertEquals("Artist", read.artistName);
+            assertEquals("http://e/track", read.externalUrl);
+        }
+    }
+
+    @Test
+    public void readTrackKeepsMissingFields() throws IOException {
+        TrackItem track = new TrackItem("id", null, null, null, ALBUM_ART, null, null, null);
+
+        TrackItem read = roundTrip(track);
+
+        assertEquals("id", read.id);
+        assertNull(read.name);
+        assertNull(read.albumId);
+        assertNull(read.previewUrl);
+        assertNull(read.externalUrl);
+    }
+
+    @Test
+    public void readsVersionTwoTracksWithoutAnAlbumId() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeStrings(out, "id", "Name", "Album", ALBUM_ART.encode(), "http://p/preview", "Artist", null);
+
+        TrackItem read = QueueStore.readTrack(read(bytes), 2);
+
+        assertNull(read.albumId);
+        assertEquals("Album", read.albumName);
+        assertEquals(ALBUM_ART.getUrls(), read.albumArt.getUrls());
+        assertEquals("http://p/preview", read.previewUrl);
+        assertEquals("Artist", read.artistName);
+        assertNull(read.externalUrl);
+    }
+
+    @Test
+    public void readsVersionOneTracksWithASingleAlbumArtUrl() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeStrings(out, "id", "Name", "Album", "http://i/large", "http://p/preview", "Artist", null);
+
+        TrackItem read = QueueStore.readTrack(read(bytes), 1);
+
+        assertNull(read.albumId);
+        assertEquals(Arrays.asList("http://i/large"), read.albumArt.getUrls());
+        assertEquals("http://i/large", read.albumArtUrl);
+        assertEquals("http://p/preview", read.previewUrl);
+    }
+
+    private static TrackItem roundTrip(TrackItem track) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        QueueStore.writeTrack(new DataOutputStream(bytes), track);
+        return QueueStore.readTrack(read(bytes), 3);
+    }
+
+    private static DataInputStream read(ByteArrayOutputStream bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    /**
+     * Writes the strings the way the store does, each behind a flag saying whether it is null.
+     */
+    private static void writeStrings(DataOutputStream out, String... values) throws IOException {
+        for (String value : values) {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package com.github.mjhassanpur.spotifystreamer.media;
+
+import com.squareup.okhttp.OkHttpClient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class StreamProxyTest {
+
+    private static final String MEDIA_ID = "4uLU6hMCjMI75M1A2tKUQC";
+    private static final int PREVIEW_LENGTH = 50000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private byte[] mPreview;
+    private Upstream mUpstream;
+    private AudioCache mCache;
+    private StreamProxy mProxy;
+
+    @Before
+    public void setUp() throws IOException {
+        mPreview = new byte[PREVIEW_LENGTH];
+        for (int i = 0; i < mPreview.length; i++) {
+            mPreview[i] = (byte) (i * 31);
+        }
+        mUpstream = new Upstream(mPreview);
+        mCache = new AudioCache(null, mFolder.newFolder("previews")) {
+            @Override
+            long getMaxSize() {
+                return Long.MAX_VALUE;
+            }
+        };
+        mProxy = new StreamProxy(mCache, new OkHttpClient());
+        mProxy.start();
+    }
+
+    @After
+    public void tearDown() {
+        mProxy.stop();
+        mUpstream.close();
+    }
+
+    @Test
+    public void servesTheWholePreview() throws IOException {
+        Reply reply = get(null);
+
+        assertEquals(200, reply.mCode);
+        assertEquals(String.valueOf(PREVIEW_LENGTH), reply.mHeaders.get("content-length"));
+        assertArrayEquals(mPreview, reply.mBody);
+    }
+
+    @Test
+    public void servesAClosedRange() throws IOException {
+        Reply reply = get("bytes=100-199");
+
+        assertEquals(206, reply.mCode);
+        assertEquals("bytes 100-199/" + PREVIEW_LENGTH, reply.mHeaders.get("content-range"));
+        assertEquals("100", reply.mHeaders.get("content-length"));
+        assertArrayEquals(Arrays.copyOfRange(mPreview, 100, 200), reply.mBody);
+    }
+
+    @Test
+    public void servesAnOpenRange() throws IOException {
+        Reply reply = get("bytes=40000-");
+
+        assertEquals(206, reply.mCode);
+        assertEquals("bytes 40000-" + (PREVIEW_LENGTH - 1) + "/" + PREVIEW_LENGTH,
+                reply.mHeaders.get("content-range"));
+        assertArrayEquals(Arrays.copyOfRange(mPreview, 40000, PREVIEW_LENGTH), reply.mBody);
+    }
+
+    @Test
+    public void clampsARangePastTheEnd() throws IOException {
+        Reply reply = get("bytes=49990-60000");
+
+        assertEquals(206, reply.mCode);
+        assertEquals("bytes 49990-" + (PREVIEW_LENGTH - 1) + "/" + PREVIEW_LENGTH,
+                reply.mHeaders.get("content-range"));
+        assertArrayEquals(Arrays.copyOfRange(mPreview, 49990, PREVIEW_LENGTH), reply.mBody);
+    }
+
+    @Test
+    public void servesARangeCoveringTheWholePreviewAsOk() throws IOException {
+        Reply reply = get("bytes=0-");
+
+        assertEquals(200, reply.mCode);
+        assertArrayEquals(mPreview, reply.mBody);
+    }
+
+    @Test
+    public void rejectsARangeStartingPastTheEnd() throws IOException {
+        Reply reply = get("bytes=" + PREVIEW_LENGTH + "-");
+
+        assertEquals(416, reply.mCode);
+        assertEquals(0, reply.mBody.length);
+    }
+
+    @Test
+    public void rejectsARangeEndingBeforeItStarts() throws IOException {
+        Reply reply = get("bytes=200-100");
+
+        assertEquals(416, reply.mCode);
+        assertEquals(0, reply.mBody.length);
+    }
+
+    @Test
+    public void ignoresAMalformedRange() throws IOException {
+        Reply reply = get("bytes=-500");
+
+        assertEquals(200, reply.mCode);
+        assertArrayEquals(mPreview, reply.mBody);
+    }
+
+    @Test
+    public void rejectsAPathThatWasntRegistered() throws IOException {
+        String url = URLEncoder.encode(mUpstream.getUrl(), "UTF-8");
+
+        assertEquals(404, request("/" + MEDIA_ID + "?url=" + url, null).mCode);
+        assertEquals(404, request("/../../shared_prefs/x.xml?url=" + url, null).mCode);
+        assertEquals(404, request("/", null).mCode);
+        assertEquals(Collections.<String>emptyList(), mUpstream.getRanges());
+    }
+
+    @Test
+    public void onlyProxiesSpotifyIds() {
+        String source = mUpstream.getUrl();
+
+        assertEquals(source, mProxy.getUrl("../../shared_prefs/x.xml", source));
+        assertEquals(source, mProxy.getUrl("track", source));
+        assertNotEquals(source, mProxy.getUrl(MEDIA_ID, source));
+    }
+
+    @Test
+    public void registeringTheSameTrackAgainKeepsItsUrl() {
+        String url = mProxy.getUrl(MEDIA_ID, mUpstream.getUrl());
+
+        assertEquals(url, mProxy.getUrl(MEDIA_ID, mUpstream.getUrl()));
+        assertNotEquals(url, mProxy.getUrl(MEDIA_ID, mUpstream.getUrl() + "?v=2"));
+    }
+
+    @Test
+    public void cachesTheDownload() throws IOException {
+        get(null);
+        File cached = awaitCached();
+
+        assertNotNull(cached);
+        assertArrayEquals(mPreview, readFile(cached));
+        assertArrayEquals(Arrays.copyOfRange(mPreview, 10, 20), get("bytes=10-19").mBody);
+        // The second request was served from the cache
+        assertEquals(Collections.singletonList(""), mUpstream.getRanges());
+    }
+
+    @Test
+    public void resumesFromThePartialFile() throws IOException {
+        writeFile(mCache.getPartialFile(MEDIA_ID), Arrays.copyOf(mPreview, 20000));
+
+        Reply reply = get(null);
+
+        assertEquals(Collections.singletonList("bytes=20000-"), mUpstream.getRanges());
+        assertEquals(200, reply.mCode);
+        assertArrayEquals(mPreview, reply.mBody);
+        assertArrayEquals(mPreview, readFile(awaitCached()));
+    }
+
+    @Test
+    public void startsOverWhenUpstreamIgnoresTheResumeRange() throws IOException {
+        writeFile(mCache.getPartialFile(MEDIA_ID), new byte[20000]);
+        mUpstream.mHonorRanges = false;
+
+        Reply reply = get(null);
+
+        assertEquals(Collections.singletonList("bytes=20000-"), mUpstream.getRanges());
+        assertArrayEquals(mPreview, reply.mBody);
+        assertArrayEquals(mPreview, readFile(awaitCached()));
+    }
+
+    @Test
+    public void finishesAFullyWrittenPartialFile() throws IOException {
+        writeFile(mCache.getPartialFile(MEDIA_ID), mPreview);
+
+        Reply reply = get(null);
+
+        assertEquals(Collections.singletonList("bytes=" + PREVIEW_LENGTH + "-"), mUpstream.getRanges());
+        assertEquals(200, reply.mCode);
+        assertArrayEquals(mPreview, reply.mBody);
+        assertArrayEquals(mPreview, readFile(awaitCached()));
+    }
+
+    @Test
+    public void startsOverWhenThePartialFileIsLongerThanUpstream() throws IOException {
+        writeFile(mCache.getPartialFile(MEDIA_ID), new byte[PREVIEW_LENGTH + 10000]);
+
+        Reply reply = get(null);
+
+        assertEquals(Arrays.asList("bytes=" + (PREVIEW_LENGTH + 10000) + "-", ""), mUpstream.getRanges());
+        assertArrayEquals(mPreview, reply.mBody);
+        assertArrayEquals(mPreview, readFile(awaitCached()));
+    }
+
+    @Test
+    public void resumesOnlyIfUpstreamIsUnchanged() throws IOException {
+        writeFile(mCache.getPartialFile(MEDIA_ID), Arrays.copyOf(mPreview, 20000));
+        mCache.setPartialEtag(MEDIA_ID, "\"v1\"");
+
+        assertArrayEquals(mPreview, get(null).mBody);
+        assertEquals(Collections.singletonList("\"v1\""), mUpstream.getIfRanges());
+        assertNull(mCache.getPartialEtag(MEDIA_ID));
+    }
+
+    @Test
+    public void startsOverWhenUpstreamChanged() throws IOException {
+        writeFile(mCache.getPartialFile(MEDIA_ID), new byte[20000]);
+        mCache.setPartialEtag(MEDIA_ID, "\"v0\"");
+
+        Reply reply = get(null);
+
+        assertEquals(Collections.singletonList("\"v0\""), mUpstream.getIfRanges());
+        assertArrayEquals(mPreview, reply.mBody);
+        assertArrayEquals(mPreview, readFile(awaitCached()));
+    }
+
+    @Test
+    public void neverSendsAPartialLengthWithOkWhenTheLengthIsUnknown() throws IOException {
+        mUpstream.mSendLength = false;
+
+        Reply reply = get("bytes=0-99");
+
+        if (reply.mCode == 200) {
+            // The whole preview, without a length that would cut it short
+            assertNull(reply.mHeaders.get("content-length"));
+            assertArrayEquals(mPreview, reply.mBody);
+        } else {
+            assertEquals(206, reply.mCode);
+            assertEquals("bytes 0-99/" + PREVIEW_LENGTH, reply.mHeaders.get("content-range"));
+            assertArrayEquals(Arrays.copyOf(mPreview, 100), reply.mBody);
+        }
+    }
+
+    @Test
+    public void describesARangeOnceTheUnknownLengthIsKnown() throws IOException {
+        mUpstream.mSendLength = false;
+
+        Reply reply = get("bytes=100-199");
+
+        assertEquals(206, reply.mCode);
+        assertEquals("bytes 100-199/" + PREVIEW_LENGTH, reply.mHeaders.get("content-range"));
+        assertArrayEquals(Arrays.copyOfRange(mPreview, 100, 200), reply.mBody);
+    }
+
+    private Reply get(String range) throws IOException {
+        return request(new URL(mProxy.getUrl(MEDIA_ID, mUpstream.getUrl())).getFile(), range);
+    }
+
+    private Reply request(String path, String range) throws IOException {
+        URL proxy = new URL(mProxy.getUrl(MEDIA_ID, mUpstream.getUrl()));
+        Socket socket = new Socket(proxy.getHost(), proxy.getPort());
+        try {
+            socket.setSoTimeout(10000);
+            StringBuilder request = new StringBuilder("GET ").append(path).append(" HTTP/1.1\r\n");
+            if (range != null) {
+                request.append("Range: ").append(range).append("\r\n");
+            }
+            request.append("\r\n");
+            socket.getOutputStream().write(request.toString().getBytes("US-ASCII"));
+            return Reply.read(socket.getInputStream());
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return the cached preview, once the download has moved it into the cache after
+     * serving its last byte
+     */
+    private File awaitCached() {
+        long deadline = System.currentTimeMillis() + 5000;
+        File cached;
+        while ((cached = mCache.get(MEDIA_ID)) == null && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return cached;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return c == -1 && line.length() == 0 ? null : line.toString();
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+        }
+        return headers;
+    }
+
+    private static byte[] readToEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A response of the proxy, whose body is read until the connection is closed.
+     */
+    private static class Reply {
+        int mCode;
+        Map<String, String> mHeaders;
+        byte[] mBody;
+
+        static Reply read(InputStream in) throws IOException {
+            Reply reply = new Reply();
+            String statusLine = readLine(in);
+            reply.mCode = Integer.parseInt(statusLine.split(" ")[1]);
+            reply.mHeaders = readHeaders(in);
+            reply.mBody = readToEnd(in);
+            return reply;
+        }
+    }
+
+    /**
+     * A stand-in for the preview server, answering every request with the preview.
+     */
+    private static class Upstream implements Runnable {
+        private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-");
+
+        private final byte[] mContent;
+        private final ServerSocket mServerSocket;
+        // The Range header of every request, or an empty string if it had none
+        private final List<String> mRanges = new ArrayList<>();
+        // The If-Range header of every request that had one
+        private final List<String> mIfRanges = new ArrayList<>();
+        volatile String mEtag = "\"v1\"";
+        volatile boolean mHonorRanges = true;
+        volatile boolean mSendLength = true;
+
+        Upstream(byte[] content) throws IOException {
+            mContent = content;
+            mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/preview.mp3";
+        }
+
+        synchronized List<String> getRanges() {
+            return new ArrayList<>(mRanges);
+        }
+
+        synchronized List<String> getIfRanges() {
+            return new ArrayList<>(mIfRanges);
+        }
+
+        void close() {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    Socket socket = mServerSocket.accept();
+                    try {
+                        serve(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // Closed, or the proxy dropped the connection
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            InputStream in = socket.getInputStream();
+            readLine(in);
+            Map<String, String> requestHeaders = readHeaders(in);
+            String range = requestHeaders.get("range");
+            String ifRange = requestHeaders.get("if-range");
+            synchronized (this) {
+                mRanges.add(range != null ? range : "");
+                if (ifRange != null) {
+                    mIfRanges.add(ifRange);
+                }
+            }
+            long start = 0;
+            Matcher matcher = RANGE_PATTERN.matcher(range != null ? range : "");
+            if (mHonorRanges && matcher.matches() && (ifRange == null || ifRange.equals(mEtag))) {
+                start = Long.parseLong(matcher.group(1));
+            }
+            OutputStream out = socket.getOutputStream();
+            if (start >= mContent.length) {
+                out.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\n"
+                        + "Content-Range: bytes */" + mContent.length + "\r\n"
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+                out.flush();
+                return;
+            }
+            StringBuilder headers = new StringBuilder();
+            headers.append(start > 0 ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n")
+                    .append("ETag: ").append(mEtag).append("\r\n");
+            if (start > 0) {
+                headers.append("HTTP/1.1 206 Partial Content\r\n")
+                        .append("Content-Range: bytes ").append(start).append('-')
+                        .append(mContent.length - 1).append('/').append(mContent.length).append("\r\n");
+            }
+            if (mSendLength) {
+                headers.append("Content-Length: ").append(mContent.length - start).append("\r\n");
+            }
+            headers.append("Connection: close\r\n\r\n");
+            out.write(headers.toString().getBytes("US-ASCII"));
+            out.write(mContent, (int) start, (int) (mContent.length - start));
+            out.flush();
+        }
+    }
+}
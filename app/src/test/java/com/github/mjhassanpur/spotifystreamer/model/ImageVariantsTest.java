@@ -0,0 +1,113 @@
+package com.github.mjhassanpur.spotifystreamer.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import kaaes.spotify.webapi.android.models.Image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ImageVariantsTest {
+
+    private static final ImageVariants VARIANTS = ImageVariants.fromImages(Arrays.asList(
+            image(640, 640, "large"),
+            image(64, 64, "small"),
+            image(300, 300, "medium")));
+
+    @Test
+    public void getUrlReturnsTheSmallestThatFills() {
+        assertEquals("small", VARIANTS.getUrl(0));
+        assertEquals("small", VARIANTS.getUrl(1));
+        assertEquals("small", VARIANTS.getUrl(63));
+        assertEquals("small", VARIANTS.getUrl(64));
+        assertEquals("medium", VARIANTS.getUrl(65));
+        assertEquals("medium", VARIANTS.getUrl(300));
+        assertEquals("large", VARIANTS.getUrl(301));
+        assertEquals("large", VARIANTS.getUrl(640));
+    }
+
+    @Test
+    public void getUrlFallsBackToTheLargest() {
+        assertEquals("large", VARIANTS.getUrl(641));
+        assertEquals("large", VARIANTS.getUrl(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void getUrlOfNoImagesIsNull() {
+        assertNull(ImageVariants.EMPTY.getUrl(0));
+        assertNull(ImageVariants.EMPTY.getUrl(100));
+        assertNull(ImageVariants.fromImages(null).getLargestUrl());
+        assertTrue(ImageVariants.fromImages(Collections.<Image>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void sizeIsTheLargerSide() {
+        ImageVariants variants = ImageVariants.fromImages(Arrays.asList(
+                image(200, 100, "wide"),
+                image(100, 150, "tall")));
+
+        assertEquals("tall", variants.getUrl(150));
+        assertEquals("wide", variants.getUrl(151));
+        assertEquals("wide", variants.getLargestUrl());
+    }
+
+    @Test
+    public void imagesOfUnknownSizeSortFirst() {
+        ImageVariants variants = ImageVariants.fromImages(Arrays.asList(
+                image(300, 300, "known"),
+                image(null, null, "unknown")));
+
+        assertEquals("unknown", variants.getUrl(0));
+        assertEquals("known", variants.getUrl(1));
+        assertEquals(Arrays.asList("unknown", "known"), variants.getUrls());
+    }
+
+    @Test
+    public void imagesWithoutUrlsAreSkipped() {
+        ImageVariants variants = ImageVariants.fromImages(Arrays.asList(
+                null,
+                image(640, 640, null),
+                image(64, 64, "small")));
+
+        assertEquals(Collections.singletonList("small"), variants.getUrls());
+        assertEquals("small", variants.getUrl(640));
+    }
+
+    @Test
+    public void aSingleUrlServesEverySize() {
+        ImageVariants variants = ImageVariants.fromUrl("only");
+
+        assertEquals("only", variants.getUrl(0));
+        assertEquals("only", variants.getUrl(1000));
+        assertTrue(ImageVariants.fromUrl(null).isEmpty());
+    }
+
+    @Test
+    public void decodeReversesEncode() {
+        ImageVariants decoded = ImageVariants.decode(VARIANTS.encode());
+
+        assertEquals(VARIANTS.getUrls(), decoded.getUrls());
+        assertEquals("medium", decoded.getUrl(65));
+        assertEquals("large", decoded.getUrl(641));
+    }
+
+    @Test
+    public void decodeSkipsMalformedLines() {
+        ImageVariants decoded = ImageVariants.decode("64 small\nnot a size\n\n640 large");
+
+        assertEquals(Arrays.asList("small", "large"), decoded.getUrls());
+        assertEquals("large", decoded.getUrl(65));
+    }
+
+    private static Image image(Integer width, Integer height, String url) {
+        Image image = new Image();
+        image.width = width;
+        image.height = height;
+        image.url = url;
+        return image;
+    }
+}
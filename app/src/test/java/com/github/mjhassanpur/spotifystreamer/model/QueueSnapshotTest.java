@@ -0,0 +1,81 @@
+package com.github.mjhassanpur.spotifystreamer.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class QueueSnapshotTest {
+
+    @Test
+    public void versionIsFnv1aOfTheIds() {
+        assertEquals(0xcbf29ce484222325L, QueueSnapshot.of(Collections.<TrackItem>emptyList()).getVersion());
+        // FNV-1a 64 of "a,"
+        assertEquals(0x089bf607b54513e0L, QueueSnapshot.of(tracks("a")).getVersion());
+    }
+
+    @Test
+    public void sameIdsInTheSameOrderHaveTheSameVersion() {
+        List<TrackItem> renamed = Arrays.asList(
+                new TrackItem("a", "Other", null, null, ImageVariants.EMPTY, null, null, null),
+                new TrackItem("b", "Other", null, null, ImageVariants.EMPTY, null, null, null));
+
+        assertEquals(QueueSnapshot.of(tracks("a", "b")).getVersion(), QueueSnapshot.of(renamed).getVersion());
+    }
+
+    @Test
+    public void orderChangesTheVersion() {
+        assertNotEquals(QueueSnapshot.of(tracks("a", "b")).getVersion(),
+                QueueSnapshot.of(tracks("b", "a")).getVersion());
+    }
+
+    @Test
+    public void idBoundariesChangeTheVersion() {
+        assertNotEquals(QueueSnapshot.of(tracks("ab", "c")).getVersion(),
+                QueueSnapshot.of(tracks("a", "bc")).getVersion());
+        assertNotEquals(QueueSnapshot.of(tracks("abc")).getVersion(),
+                QueueSnapshot.of(tracks("ab", "c")).getVersion());
+    }
+
+    @Test
+    public void addingOrRemovingATrackChangesTheVersion() {
+        long version = QueueSnapshot.of(tracks("a", "b")).getVersion();
+
+        assertNotEquals(version, QueueSnapshot.of(tracks("a", "b", "c")).getVersion());
+        assertNotEquals(version, QueueSnapshot.of(tracks("a")).getVersion());
+        assertNotEquals(version, QueueSnapshot.of(tracks("a", "b", "")).getVersion());
+    }
+
+    @Test
+    public void snapshotIsNotAffectedByLaterChangesToTheList() {
+        List<TrackItem> tracks = new ArrayList<>(tracks("a", "b"));
+        QueueSnapshot snapshot = QueueSnapshot.of(tracks);
+        tracks.add(track("c"));
+
+        assertEquals(2, snapshot.size());
+        assertEquals(Arrays.asList("a", "b"), snapshot.getIds());
+        assertEquals(2, snapshot.getTracks().size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void idsCannotBeModified() {
+        QueueSnapshot.of(tracks("a")).getIds().add("b");
+    }
+
+    private static List<TrackItem> tracks(String... ids) {
+        List<TrackItem> tracks = new ArrayList<>();
+        for (String id : ids) {
+            tracks.add(track(id));
+        }
+        return tracks;
+    }
+
+    private static TrackItem track(String id) {
+        return new TrackItem(id, "Track " + id, null, null, ImageVariants.EMPTY, null, null, null);
+    }
+}
@@ -0,0 +1,180 @@
+package com.github.mjhassanpur.spotifystreamer.ui.adapters;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ListDifferTest {
+
+    private ListDiffer<Item> mDiffer;
+
+    @Before
+    public void setUp() {
+        mDiffer = new ListDiffer<>(null, new ListDiffer.ItemCallback<Item>() {
+            @Override
+            public String getId(Item item) {
+                return item.mId;
+            }
+
+            @Override
+            public boolean areContentsTheSame(Item oldItem, Item newItem) {
+                return oldItem.mName.equals(newItem.mName);
+            }
+        });
+    }
+
+    @Test
+    public void noOperationsForTheSameList() {
+        List<Item> items = items("a", "b", "c");
+
+        assertArrayEquals(new int[0], mDiffer.diff(items, items("a", "b", "c")));
+    }
+
+    @Test
+    public void movingAnItemToTheEndIsASingleMove() {
+        int[] operations = mDiffer.diff(items("a", "b", "c", "d"), items("b", "c", "d", "a"));
+
+        assertArrayEquals(new int[] { ListDiffer.MOVE, 0, 3 }, operations);
+    }
+
+    @Test
+    public void movingAnItemToTheStartIsASingleMove() {
+        int[] operations = mDiffer.diff(items("a", "b", "c", "d"), items("d", "a", "b", "c"));
+
+        assertArrayEquals(new int[] { ListDiffer.MOVE, 3, 0 }, operations);
+    }
+
+    @Test
+    public void removalsComeFromTheEnd() {
+        int[] operations = mDiffer.diff(items("a", "b", "c", "d"), items("b", "d"));
+
+        assertArrayEquals(new int[] { ListDiffer.REMOVE, 2, 0, ListDiffer.REMOVE, 0, 0 }, operations);
+    }
+
+    @Test
+    public void insertionsAreAtTheirFinalPositions() {
+        int[] operations = mDiffer.diff(items("b", "d"), items("a", "b", "c", "d", "e"));
+
+        assertArrayEquals(new int[] {
+                ListDiffer.INSERT, 0, 0,
+                ListDiffer.INSERT, 2, 0,
+                ListDiffer.INSERT, 4, 0 }, operations);
+    }
+
+    @Test
+    public void changesAreAtTheFinalPositions() {
+        List<Item> newItems = items("c", "a", "b");
+        newItems.set(0, new Item("c", "renamed"));
+
+        int[] operations = mDiffer.diff(items("a", "b", "c"), newItems);
+
+        assertArrayEquals(new int[] { ListDiffer.MOVE, 2, 0, ListDiffer.CHANGE, 0, 0 }, operations);
+    }
+
+    @Test
+    public void nullWhenTheIdsArentUnique() {
+        assertNull(mDiffer.diff(items("a", "b"), items("a", "a")));
+        assertNull(mDiffer.diff(items("a", "a"), items("a", "b")));
+    }
+
+    @Test
+    public void operationsTurnTheOldListIntoTheNewOne() {
+        Random random = new Random(42);
+        for (int run = 0; run < 500; run++) {
+            List<Item> oldItems = randomItems(random);
+            List<Item> newItems = randomItems(random);
+            // Some of the items that are kept get a new name
+            for (int i = 0; i < newItems.size(); i++) {
+                if (random.nextInt(4) == 0) {
+                    newItems.set(i, new Item(newItems.get(i).mId, "renamed"));
+                }
+            }
+
+            assertReaches(oldItems, newItems, mDiffer.diff(oldItems, newItems));
+        }
+    }
+
+    /**
+     * Applies the operations the way RecyclerView does, and checks that they end in the new
+     * list and rebind exactly the rows whose contents changed.
+     */
+    private static void assertReaches(List<Item> oldItems, List<Item> newItems, int[] operations) {
+        List<String> ids = ids(oldItems);
+        Set<String> changed = new HashSet<>();
+        for (int i = 0; i < operations.length; i += 3) {
+            int position = operations[i + 1];
+            switch (operations[i]) {
+                case ListDiffer.REMOVE:
+                    ids.remove(position);
+                    break;
+                case ListDiffer.INSERT:
+                    ids.add(position, newItems.get(position).mId);
+                    break;
+                case ListDiffer.MOVE:
+                    ids.add(operations[i + 2], ids.remove(position));
+                    break;
+                case ListDiffer.CHANGE:
+                    changed.add(ids.get(position));
+                    break;
+            }
+        }
+
+        List<String> expectedIds = new ArrayList<>();
+        Set<String> expectedChanged = new HashSet<>();
+        for (Item item : newItems) {
+            expectedIds.add(item.mId);
+            if (item.mName.equals("renamed") && ids(oldItems).contains(item.mId)) {
+                expectedChanged.add(item.mId);
+            }
+        }
+        assertEquals(expectedIds, ids);
+        assertEquals(expectedChanged, changed);
+    }
+
+    private static List<Item> randomItems(Random random) {
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            if (random.nextBoolean()) {
+                items.add(new Item(String.valueOf(i), String.valueOf(i)));
+            }
+        }
+        Collections.shuffle(items, random);
+        return items;
+    }
+
+    private static List<String> ids(List<Item> items) {
+        List<String> ids = new ArrayList<>();
+        for (Item item : items) {
+            ids.add(item.mId);
+        }
+        return ids;
+    }
+
+    private static List<Item> items(String... ids) {
+        List<Item> items = new ArrayList<>();
+        for (String id : ids) {
+            items.add(new Item(id, id));
+        }
+        return items;
+    }
+
+    private static class Item {
+        final String mId;
+        final String mName;
+
+        Item(String id, String name) {
+            mId = id;
+            mName = name;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.mjhassanpur.spotifystreamer.utils;
+
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.session.MediaSessionCompat.QueueItem;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class IndexedQueueTest {
+
+    private long mNextQueueId;
+
+    @Test
+    public void indexOfFindsMediaAndQueueIds() {
+        IndexedQueue queue = queue("a", "b", "c");
+
+        assertEquals(1, queue.indexOf("b"));
+        assertEquals(2, queue.indexOf(queue.get(2).getQueueId()));
+        assertEquals(-1, queue.indexOf("d"));
+        assertEquals(-1, queue.indexOf(mNextQueueId));
+    }
+
+    @Test
+    public void insertingShiftsTheLaterItems() {
+        IndexedQueue queue = queue("a", "b", "c");
+
+        queue.add(1, item("d"));
+
+        assertEquals(Arrays.asList("a", "d", "b", "c"), mediaIds(queue));
+        assertIndexed(queue);
+    }
+
+    @Test
+    public void duplicatesResolveToTheFirst() {
+        IndexedQueue queue = queue("a", "b", "a");
+
+        assertEquals(0, queue.indexOf("a"));
+
+        queue.add(0, item("a"));
+        assertEquals(0, queue.indexOf("a"));
+        assertIndexed(queue);
+    }
+
+    @Test
+    public void removingTheFirstDuplicatePromotesTheNext() {
+        IndexedQueue queue = queue("a", "b", "a", "a");
+
+        queue.remove(0);
+
+        assertEquals(1, queue.indexOf("a"));
+        assertIndexed(queue);
+    }
+
+    @Test
+    public void movingADuplicateAheadOfTheFirstMakesItTheFirst() {
+        IndexedQueue queue = queue("b", "a", "c", "a");
+        long moved = queue.get(3).getQueueId();
+
+        queue.move(3, 0);
+
+        assertEquals(0, queue.indexOf("a"));
+        assertEquals(0, queue.indexOf(moved));
+        assertIndexed(queue);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsADuplicateQueueId() {
+        IndexedQueue queue = queue("a");
+
+        queue.add(new QueueItem(description("b"), queue.get(0).getQueueId()));
+    }
+
+    @Test
+    public void randomEditsKeepTheIndicesConsistent() {
+        Random random = new Random(7);
+        IndexedQueue queue = new IndexedQueue();
+        for (int step = 0; step < 2000; step++) {
+            int size = queue.size();
+            // Few media IDs, so that there are many duplicates
+            String mediaId = String.valueOf((char) ('a' + random.nextInt(5)));
+            switch (size == 0 ? 0 : random.nextInt(4)) {
+                case 0:
+                    queue.add(random.nextInt(size + 1), item(mediaId));
+                    break;
+                case 1:
+                    queue.remove(random.nextInt(size));
+                    break;
+                case 2:
+                    queue.move(random.nextInt(size), random.nextInt(size));
+                    break;
+                default:
+                    if (random.nextInt(50) == 0) {
+                        queue.clear();
+                    }
+                    break;
+            }
+            assertIndexed(queue);
+        }
+    }
+
+    /**
+     * Checks every lookup against a linear search of the items.
+     */
+    private static void assertIndexed(IndexedQueue queue) {
+        List<String> mediaIds = mediaIds(queue);
+        for (int i = 0; i < queue.size(); i++) {
+            assertEquals(i, queue.indexOf(queue.get(i).getQueueId()));
+            assertEquals(mediaIds.indexOf(mediaIds.get(i)), queue.indexOf(mediaIds.get(i)));
+        }
+    }
+
+    private static List<String> mediaIds(IndexedQueue queue) {
+        List<String> mediaIds = new ArrayList<>();
+        for (QueueItem item : queue.asList()) {
+            mediaIds.add(item.getDescription().getMediaId());
+        }
+        return mediaIds;
+    }
+
+    private IndexedQueue queue(String... mediaIds) {
+        IndexedQueue queue = new IndexedQueue();
+        for (String mediaId : mediaIds) {
+            queue.add(item(mediaId));
+        }
+        return queue;
+    }
+
+    private QueueItem item(String mediaId) {
+        return new QueueItem(description(mediaId), mNextQueueId++);
+    }
+
+    private static MediaDescriptionCompat description(String mediaId) {
+        return new MediaDescriptionCompat.Builder().setMediaId(mediaId).build();
+    }
+}